@@ -0,0 +1,73 @@
+package Benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jFastEMD.EmdSolver;
+import MDPHierarchy.AggMDP;
+import MDPHierarchy.MDP;
+import MDPHierarchy.MDP.Histogram;
+import MDPHierarchy.MDP.InvalidMDPException;
+import SpecificMDPs.GridMDP;
+import SpecificMDPs.PuddleMDP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the EMD on the histograms compared when building the second refinement 
+ * level of a GridMDP and of a PuddleMDP, one pair per operation, with the dedicated solver 
+ * for small supports (smallSupportLimit 8, the default of JFastEMD) and without it (0)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EmdBenchmarks {
+
+	@Param({"GridMDP", "PuddleMDP"})
+	public String mdp;
+
+	@Param({"10", "25", "50", "100", "200"})
+	public int size;
+
+	@Param({"8", "0"})
+	public int smallSupportLimit;
+
+	private EmdSolver solver;
+	private List<Histogram> hs;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws InvalidMDPException {
+		solver = new EmdSolver();
+		solver.setSmallSupportLimit(smallSupportLimit);
+		MDP m = mdp.equals("GridMDP") ? new GridMDP(size) : new PuddleMDP(size);
+		AggMDP magg = new AggMDP(new AggMDP(m));
+		hs = new ArrayList<Histogram>();
+		for (MDP.State s : m.getStates()) {
+			for (int a = 0; a < m.number_actions(); a++) {
+				hs.add(s.histogram(a, magg));
+			}
+		}
+	}
+
+	@Benchmark
+	public double distanceRealHistograms() {
+		next = (next + 1 < hs.size()) ? next + 1 : 1;
+		return solver.distance(hs.get(next - 1), hs.get(next), -1);
+	}
+}
@@ -0,0 +1,87 @@
+package Benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import MDPHierarchy.AggMDP;
+import SpecificMDPs.PuddleMDP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the construction of the hierarchy of a PuddleMDP: the reward based
+ * AggMDP(MDP) and the refinement AggMDP(AggMDP).
+ * Usage, from MDPAnalysis after mvn package:
+ * java -jar target/benchmarks.jar HierarchyBenchmarks -p size=10,50 -p threads=4 -rf json -rff results.json
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class HierarchyBenchmarks {
+
+	@Param({"10", "25", "50", "100", "200"})
+	public int size;
+
+	// with more than one thread, the representatives are compared in parallel
+	@Param({"1"})
+	public int threads;
+
+	private PuddleMDP m;
+	private AggMDP magg;
+	private ExecutorService executor = null;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		m = new PuddleMDP(size);
+		if(threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if(executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	// the refinement modifies the AggMDP it refines, so each refinement gets a new one
+	@Setup(Level.Iteration)
+	public void newLevel() {
+		magg = new AggMDP(m);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public int aggMDPFromMDP() {
+		return new AggMDP(m).number_states();
+	}
+
+	/**
+	 * One refinement per iteration, as a single shot: each refinement has to start from a new 
+	 * AggMDP, which is built outside of the measurement
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 3)
+	public int aggMDPFromAggMDP() {
+		return new AggMDP(magg, new AggMDP.Options().setExecutor(executor)).number_states();
+	}
+}
@@ -0,0 +1,57 @@
+package Benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import MDPHierarchy.AggMDP;
+import SpecificMDPs.PuddleMDP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the second refinement of the hierarchy of a PuddleMDP, with and without 
+ * warm started EMDs. The distances, hence the clusters, are the same in both cases
+ */
+@State(Scope.Thread)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class WarmStartBenchmarks {
+
+	@Param({"10", "25", "50"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean warmStart;
+
+	private PuddleMDP m;
+	private AggMDP magg;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		m = new PuddleMDP(size);
+	}
+
+	// the refinement modifies the AggMDP it refines, so each refinement gets a new one
+	@Setup(Level.Iteration)
+	public void newLevel() {
+		magg = new AggMDP(new AggMDP(m), new AggMDP.Options().setEmdWarmStart(warmStart));
+	}
+
+	@Benchmark
+	public int secondRefinement() {
+		return new AggMDP(magg, new AggMDP.Options().setEmdWarmStart(warmStart)).number_states();
+	}
+}
@@ -0,0 +1,91 @@
+package jFastEMD;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the min cost flow solvers on the transportation problems built by emd-hat,
+ * for random histograms on a grid of increasing support size (see RandomNetworks).
+ * Each operation solves the next of a fixed set of networks.
+ * In package jFastEMD, as the flow networks and solvers are package private
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MinCostFlowBenchmarks {
+
+    private static final int NETWORKS = 16;
+
+    /**
+     * The networks of one support size
+     */
+    @State(Scope.Thread)
+    public static class Networks {
+        @Param({"4", "8", "16", "32", "64"})
+        public int support;
+
+        FlowNetwork[] nets;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random rnd = new Random(support);
+            nets = new FlowNetwork[NETWORKS];
+            for (int r = 0; r < NETWORKS; r++) {
+                nets[r] = RandomNetworks.randomNetwork(support, rnd);
+            }
+        }
+
+        FlowNetwork next() {
+            next = (next + 1 < NETWORKS) ? next + 1 : 0;
+            return nets[next];
+        }
+    }
+
+    /**
+     * The solver of one engine, for the comparison of the engines
+     */
+    @State(Scope.Thread)
+    public static class Engine {
+        @Param({"MIN_COST_FLOW", "SUCCESSIVE_SHORTEST_PATH", "NETWORK_SIMPLEX"})
+        public EmdEngine engine;
+
+        FlowSolver solver;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            solver = engine.newSolver();
+        }
+    }
+
+    /**
+     * MinCostFlow.compute, the original solver of emd-hat
+     */
+    @Benchmark
+    public long minCostFlow(Networks n) {
+        return new MinCostFlow().compute(n.next());
+    }
+
+    /**
+     * The solver of each engine, on the same networks
+     */
+    @Benchmark
+    public long engine(Networks n, Engine e) {
+        return e.solver.compute(n.next());
+    }
+}
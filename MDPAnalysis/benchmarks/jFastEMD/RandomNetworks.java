@@ -0,0 +1,58 @@
+package jFastEMD;
+
+import java.util.Random;
+
+
+/**
+ * Random transportation problems built by emd-hat, for the benchmarks of the
+ * min cost flow solvers
+ */
+class RandomNetworks {
+
+    // network of two histograms with n bins each on a 2D grid, with integer weights
+    // and L1 ground distances quantized the same way emdHat does
+    static FlowNetwork randomNetwork(int n, Random rnd) {
+        return randomNetwork(n, rnd, true);
+    }
+
+    static FlowNetwork randomNetwork(int n, Random rnd, boolean sameMass) {
+        int N = 2 * n;
+        int side = (int) Math.ceil(Math.sqrt(N)) + 1;
+        int[] x = new int[N];
+        int[] y = new int[N];
+        long[] P = new long[N];
+        long[] Q = new long[N];
+        for (int i = 0; i < N; i++) {
+            x[i] = rnd.nextInt(side);
+            y[i] = rnd.nextInt(side);
+        }
+        long sumP = 0;
+        long sumQ = 0;
+        for (int i = 0; i < n; i++) {
+            P[i] = 1 + rnd.nextInt(1000);
+            Q[i + n] = 1 + rnd.nextInt(1000);
+            sumP += P[i];
+            sumQ += Q[i + n];
+        }
+        // same total mass on both sides, as for MDP transition histograms;
+        // otherwise the difference goes through the threshold node
+        if (sameMass && sumP > sumQ) {
+            Q[N - 1] += sumP - sumQ;
+        } else if (sameMass) {
+            P[0] += sumQ - sumP;
+        }
+
+        long[] C = new long[N * N];
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                if ((i < n) != (j < n)) {
+                    C[i * N + j] = 1000 * (Math.abs(x[i] - x[j]) + Math.abs(y[i] - y[j]));
+                }
+            }
+        }
+
+        FlowNetwork net = new FlowNetwork();
+        new EmdSolver().buildNetwork(P, Q, C, N, net);
+        return net;
+    }
+}
@@ -1,11 +1,35 @@
 package MDPHierarchy;
-import java.util.Iterator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.text.*;
 
+import jFastEMD.EmdEngine;
+import jFastEMD.EmdSolver;
+import jFastEMD.JFastEMD;
+import jFastEMD.Sinkhorn;
+import jFastEMD.WarmStart;
 import SpecificMDPs.*;
 
 /**
@@ -13,7 +37,7 @@ import SpecificMDPs.*;
  * @author gcoman
  *
  */
-public class AggMDP extends MDP{
+public class AggMDP extends MDP implements Closeable{
 
 
 	/**
@@ -56,6 +80,75 @@ public class AggMDP extends MDP{
 	 */
 	private Collection<Cluster> all_clusts;
 
+	/**
+	 * Number of EMD computations run, and avoided thanks to bounds, when building this aggregate MDP
+	 */
+	private final AtomicLong emd_calls = new AtomicLong();
+	private final AtomicLong emd_calls_avoided = new AtomicLong();
+
+	/**
+	 * Largest error bound of the Sinkhorn approximations used for the distances D, 0 if they are exact
+	 */
+	private double sinkhorn_error_bound = 0;
+
+	/**
+	 * The clusters by index, and the index of the cluster of each state of the ground MDP (the MDP 
+	 * at the bottom of the hierarchy) by index of the ground state, -1 for none. Inserting aggregate 
+	 * MDPs under this one does not change them
+	 */
+	private Cluster[] clusters;
+	private int[] ground_to_cluster;
+
+	/**
+	 * For each action, the transitions of the ground states projected on the clusters, from which the 
+	 * histograms over the clusters are read; null if they could not be built
+	 */
+	private ProjectionTable[] projections;
+
+	/**
+	 * The MDP of the states in the clusters, which is larger_mdp until an aggregate MDP gets inserted 
+	 * under this one, and the rewards of the clusters averaged over their states, by action then by 
+	 * index of the cluster; null if they could not be computed
+	 */
+	private MDP members_mdp;
+	private double[][] rewards;
+
+	/**
+	 * For each action, the probabilities of transitioning between clusters, as sparse rows: the clusters 
+	 * reached from cluster c are p_idx[a][p_ptr[a][c]] .. p_idx[a][p_ptr[a][c+1]-1], sorted by index, 
+	 * with their probabilities p_val[a][..]. Computed on the first call to P; null until then
+	 */
+	private volatile int[][] p_ptr;
+	private int[][] p_idx;
+	private double[][] p_val;
+
+	/**
+	 * Whether decluster finds clusters with a RepresentativeIndex, and the number of comparisons 
+	 * it made between states and cluster representatives
+	 */
+	private boolean metric_index = false;
+	private final AtomicLong rep_comparisons = new AtomicLong();
+
+	/**
+	 * Whether decluster buckets states by signature, and the number of states it placed by signature
+	 */
+	private boolean signature_buckets = true;
+	private final AtomicLong bucketed_states = new AtomicLong();
+
+	/**
+	 * Changes when an aggregate MDP gets inserted under this one, which changes the parent links
+	 * the histograms over its clusters are built from (see HistogramCache)
+	 */
+	private int structure_version = 0;
+
+	/**
+	 * The number of aggregate MDPs built so far in the hierarchy, shared by its levels, and the 
+	 * number of this one in the order they were built: it names the files of its metric and 
+	 * membership in the scratch directory
+	 */
+	private final AtomicInteger levels;
+	private final int level;
+
 
 
 
@@ -65,11 +158,37 @@ public class AggMDP extends MDP{
 	 * @param m : the underlying MDP
 	 */
 	public AggMDP(MDP m) {
+		this(m, new Options());
+	}
+
+	/**
+	 * Main constructor : since this is a base constructor, the clusters are determined
+	 * based on differences in reward
+	 * @param m : the underlying MDP
+	 * @param opts : settings used when building the clusters; only the storage of the metric applies
+	 */
+	public AggMDP(MDP m, Options opts) {
 		// the underlying MDP is the actual MDP given as input
 		larger_mdp = m;
+		levels = (m instanceof AggMDP) ? ((AggMDP) m).levels : new AtomicInteger();
+		level = levels.getAndIncrement();
 
 		// set up state comparator based on reward being equal for all actions
-		StateComp cmp = new StateComp() {
+		StateComp cmp = new SignedStateComp() {
+			@Override
+			public long[] signature(State s) {
+				// the rewards, exactly
+				try {
+					long[] sig = new long[number_actions()];
+					for (int i = 0; i < sig.length; i++) {
+						sig[i] = Double.doubleToLongBits(larger_mdp.R(s, i));
+					}
+					return sig;
+				}catch (InvalidMDPException e) {
+					return null;
+				}
+			}
+
 			@Override
 			public double compare(State o1, State o2) {
 
@@ -91,14 +210,12 @@ public class AggMDP extends MDP{
 		};
 
 
-		//generate the given clusters
-		// distance matrix D represented in list of list form
-		List<List<Double>> distances = new LinkedList<List<Double>>();
-
-		all_clusts = decluster(larger_mdp.getStates(),cmp, distances);	
+		//generate the given clusters, and the distance matrix D between them
+		D = newDistanceMatrix(opts, 16);
+		metric_index = opts.getMetricIndex();
+		signature_buckets = opts.getSignatureBuckets();
 
-		// construct the distance matrix D
-		D = convertToMatrix(distances);
+		all_clusts = decluster(larger_mdp.getStates(),cmp, D, 0);	
 
 		//set parent links
 		for(Cluster c : all_clusts) {			
@@ -106,6 +223,7 @@ public class AggMDP extends MDP{
 				s.parent = c;
 			}
 		}
+		setMembership();
 	}
 
 
@@ -116,84 +234,97 @@ public class AggMDP extends MDP{
 	 * @param agg_m : the Aggregate MDP that becomes declustered. Note that this input Aggregate MDP will get modified. 
 	 * The newly created Aggregate MDP will be layer between the input AggMDP m and its underlying MDP
 	 */
-	public AggMDP(AggMDP agg_m) {				
+	public AggMDP(AggMDP agg_m) {
+		this(agg_m, new Options());
+	}
+
+	/**
+	 * Constructor which builds clusters based on differences in the probability transition maps
+	 * @param agg_m : the Aggregate MDP that becomes declustered. Note that this input Aggregate MDP will get modified. 
+	 * The newly created Aggregate MDP will be layer between the input AggMDP m and its underlying MDP
+	 * @param opts : settings used when comparing the states of agg_m
+	 */
+	public AggMDP(AggMDP agg_m, Options opts) {
 		// MDP needed for generating histograms - has to be final
 		final AggMDP histogram_mdp = agg_m;
 
 
 		//set up state comparator based on histograms being equal for all actions	
-		StateComp cmp = new StateComp() {
-			@Override
-			public double compare(State o1, State o2) {
-
-				try {
-					// Calculate the distance between two states (probability-based):
-					// distance(o1, o2) = max_a (|R(o1,a) - R(o2,a)| + r D(P_o1^a, P_o2^a))
-					double maxDistance = 0;
-					int num_a = histogram_mdp.number_actions();					
-					for (int i = 0; i < num_a; i++) {
-						Histogram h1 = new Histogram(o1.getHistogram(i, histogram_mdp));
-						Histogram h2 = new Histogram(o2.getHistogram(i, histogram_mdp));		
-						double probDistance = h1.compareToJFastEMD(h2);
-						//double probDistance = h1.compareTo(h2);
-						double distance = Math.abs(o1.R(i) - o2.R(i)) + GAMMA*probDistance / 100.0;						
-						maxDistance = (maxDistance > distance) ? maxDistance : distance; 	
-					}
-					return maxDistance;
-
-				}catch (InvalidMDPException e) {
-					e.printError();
-					return -1;
-				}
-			}
-		};
+		StateComp cmp = new HistogramComp(histogram_mdp, opts);
+		levels = agg_m.levels;
+		level = levels.getAndIncrement();
 
 		/** decluster each cluster */
 		
-		// distance matrix D represented in list of lists form
-		List<List<Double>> all_distances = new LinkedList<List<Double>>();
+		// distance matrix D, filled as the clusters get created
+		D = newDistanceMatrix(opts, agg_m.number_states());
+		metric_index = opts.getMetricIndex() && opts.getSinkhornRegularization() <= 0;
+		signature_buckets = opts.getSignatureBuckets();
 		all_clusts = new LinkedList<AggMDP.Cluster>();
 		
-		
-		for(State z : histogram_mdp.getStates()) {
-			Cluster cl = (Cluster) z;  
-			
-			// distances between states belonging to same cluster
-			List<List<Double>> local_dist = new LinkedList<List<Double>>();
-			
-			// distances between states belonging to different clusters
-			List<List<Double>> global_dist = new LinkedList<List<Double>>();
-			
-			List<Cluster> lcs = decluster(cl.c_to_s, cmp, local_dist);
-			
-			Iterator<List<Double>> it_dists = local_dist.iterator();
-			
-			for(Cluster c : lcs) {
-				// set index
-				c.index += all_clusts.size();
-				
-				//tmp_lst will be added to the global distance metric
-				List<Double> tmp_lst = new LinkedList<Double>();
-				// compute the missing distances between states in the current cluster and all_clusts
-				for (Cluster l: all_clusts){
-					double dist = cmp.compare(c.c_to_s.get(0), l.c_to_s.get(0));
-					tmp_lst.add(dist);
+		List<State> parents = new ArrayList<State>(histogram_mdp.getStates());
+		if(opts.getExecutor() != null && parents.size() > 1) {
+			// the comparisons run in the tasks, so they do not use the executor themselves
+			declusterInParallel(parents, new HistogramComp(histogram_mdp, opts, null), opts.getExecutor());
+		}else {
+			for(State z : parents) {
+				Cluster cl = (Cluster) z;  
+
+				// the distances between the new clusters of cl are written by decluster, 
+				// in the rows following those of all_clusts
+				List<Cluster> lcs = decluster(cl.c_to_s, cmp, D, all_clusts.size());
+
+				for(Cluster c : lcs) {
+					// compute the missing distances between states in the current cluster and all_clusts
+					for (Cluster l: all_clusts){
+						double dist = cmp.compare(c.c_to_s.get(0), l.c_to_s.get(0));
+						D.set(c.index, l.index, dist);
+					}
 				}
-				// append two lists representing distances inside and among clusters
-				tmp_lst.addAll(it_dists.next());
-				global_dist.add(tmp_lst);
+				all_clusts.addAll(lcs);
 			}
-			all_distances.addAll(global_dist);
-			all_clusts.addAll(lcs);
 		}
-		
-		// construct the distance matrix D
-		D = convertToMatrix(all_distances);
 
-		// the newly created aggregate MDP is a layer between the agg_m provided as 
-		// parameter and what used to be its larger_mdp
+		insertUnder(agg_m);
+	}
+
+	/**
+	 * Constructor which builds the clusters from a given partition of the states of the MDP under 
+	 * agg_m, each part being contained in a cluster of agg_m (see BisimulationRefiner)
+	 * @param agg_m : the Aggregate MDP that becomes declustered. Note that this input Aggregate MDP will get modified. 
+	 * The newly created Aggregate MDP will be layer between the input AggMDP m and its underlying MDP
+	 * @param partition : the states of each cluster, in order
+	 * @param opts : settings used when computing the distances between the clusters
+	 */
+	AggMDP(AggMDP agg_m, List<List<State>> partition, Options opts) {
+		levels = agg_m.levels;
+		level = levels.getAndIncrement();
+		D = newDistanceMatrix(opts, partition.size());
+		D.ensureRows(partition.size());
+		all_clusts = new LinkedList<AggMDP.Cluster>();
+		Cluster[] by_index = new Cluster[partition.size()];
+		int[] row_first = new int[by_index.length];
+		for (int k = 0; k < by_index.length; k++) {
+			by_index[k] = new Cluster(this, k);
+			by_index[k].c_to_s.addAll(partition.get(k));
+			row_first[k] = k;
+			all_clusts.add(by_index[k]);
+		}
+
+		// distances between all clusters, from the histograms over the clusters of agg_m
+		fillDistances(by_index, row_first, new HistogramComp(agg_m, opts, null), opts.getExecutor());
+
+		insertUnder(agg_m);
+	}
+
+	/**
+	 * Makes this aggregate MDP, whose clusters refine those of agg_m, the layer between agg_m
+	 * and what used to be its larger_mdp, and sets the parent links
+	 */
+	private void insertUnder(AggMDP agg_m) {
 		this.larger_mdp = agg_m.larger_mdp;
 		agg_m.larger_mdp = this;
+		agg_m.structure_version++;
 
 		for(Cluster c : all_clusts) {
 			c.parent = c.c_to_s.get(0).parent;
@@ -201,6 +332,497 @@ public class AggMDP extends MDP{
 				s.parent = c;
 			}
 		}
+		setMembership();
+	}
+
+	/**
+	 * Same as declustering the parent clusters one after the other, with the executor: the parent
+	 * clusters are declustered by parallel tasks, each with its own local indices and distances. 
+	 * Their clusters are then numbered in the order of the parent clusters, and the distances 
+	 * between clusters of different parent clusters are computed by parallel tasks, each on a tile of D
+	 * @param parents : the clusters to decluster, in order
+	 * @param cmp : the distance between states, which must not use the executor
+	 */
+	private void declusterInParallel(List<State> parents, final StateComp cmp, ExecutorService executor) {
+		int num_p = parents.size();
+		final PackedDistanceMatrix[] local_dist = new PackedDistanceMatrix[num_p];
+		List<Future<List<Cluster>>> tasks = new ArrayList<Future<List<Cluster>>>(num_p);
+		for (int p = 0; p < num_p; p++) {
+			final Cluster cl = (Cluster) parents.get(p);
+			final int pp = p;
+			local_dist[p] = new PackedDistanceMatrix();
+			tasks.add(executor.submit(new Callable<List<Cluster>>() {
+				@Override
+				public List<Cluster> call() {
+					return decluster(cl.c_to_s, cmp, local_dist[pp], 0);
+				}
+			}));
+		}
+
+		// renumber the clusters in the order of their parent clusters; first[k] is the index of the 
+		// first cluster with the same parent cluster as cluster k
+		List<Integer> first = new ArrayList<Integer>();
+		for (int p = 0; p < num_p; p++) {
+			List<Cluster> lcs = await(tasks.get(p));
+			int offset = all_clusts.size();
+			D.ensureRows(offset + lcs.size());
+			for(Cluster c : lcs) {
+				c.index += offset;
+				first.add(offset);
+				for (int k = offset; k < c.index; k++) {
+					D.set(c.index, k, local_dist[p].get(c.index - offset, k - offset));
+				}
+			}
+			local_dist[p] = null;
+			all_clusts.addAll(lcs);
+		}
+
+		// distances between clusters of different parent clusters
+		Cluster[] by_index = all_clusts.toArray(new Cluster[all_clusts.size()]);
+		int[] row_first = new int[by_index.length];
+		for (int k = 0; k < row_first.length; k++) row_first[k] = first.get(k);
+		fillDistances(by_index, row_first, cmp, executor);
+	}
+
+	/**
+	 * Computes the distances D(g, h) between clusters g > h with h < row_first[g], by tiles of D
+	 * run as parallel tasks when there is an executor
+	 * @param by_index : the clusters, by index
+	 * @param row_first : for each cluster, the first cluster whose distance to it is already known
+	 * @param cmp : the distance between the base states of the clusters, which must not use the executor
+	 * @param executor : the executor running the tiles, or null to compute them in the calling thread
+	 */
+	private void fillDistances(final Cluster[] by_index, final int[] row_first, final StateComp cmp, 
+			ExecutorService executor) {
+		int n = by_index.length;
+		if(executor == null) {
+			for (int g = 0; g < n; g++) {
+				for (int h = 0; h < row_first[g]; h++) {
+					D.set(g, h, cmp.compare(by_index[g].c_to_s.get(0), by_index[h].c_to_s.get(0)));
+				}
+			}
+			return;
+		}
+		List<Future<?>> tiles = new ArrayList<Future<?>>();
+		for (int r0 = 0; r0 < n; r0 += PARALLEL_TILE) {
+			final int r1 = Math.min(n, r0 + PARALLEL_TILE);
+			final int row0 = r0;
+			for (int c0 = 0; c0 < row_first[r1 - 1]; c0 += PARALLEL_TILE) {
+				final int col0 = c0;
+				final int col1 = Math.min(c0 + PARALLEL_TILE, row_first[r1 - 1]);
+				tiles.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int g = row0; g < r1; g++) {
+							for (int h = col0; h < Math.min(col1, row_first[g]); h++) {
+								double dist = cmp.compare(by_index[g].c_to_s.get(0), by_index[h].c_to_s.get(0));
+								D.set(g, h, dist);
+							}
+						}
+					}
+				}));
+			}
+		}
+		for (Future<?> t : tiles) {
+			await(t);
+		}
+	}
+
+	// the result of a task, whose failure is rethrown unchecked
+	private static <T> T await(Future<T> task) {
+		try {
+			return task.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Fills clusters, ground_to_cluster, the projections and the rewards, once the clusters of this aggregate MDP are 
+	 * known and larger_mdp is set
+	 */
+	private void setMembership() {
+		clusters = new Cluster[all_clusts.size()];
+		for(Cluster c : all_clusts) {
+			clusters[c.index] = c;
+		}
+
+		MDP ground = larger_mdp;
+		while(ground instanceof AggMDP) ground = ((AggMDP) ground).larger_mdp;
+		ground_to_cluster = new int[ground.number_states()];
+		Arrays.fill(ground_to_cluster, -1);
+
+		if(larger_mdp instanceof AggMDP) {
+			// compose the membership of larger_mdp with the clusters of this MDP
+			AggMDP l = (AggMDP) larger_mdp;
+			int[] to_this = new int[l.number_states()];
+			Arrays.fill(to_this, -1);
+			for(Cluster c : all_clusts) {
+				for(State s : c.c_to_s) {
+					to_this[s.index] = c.index;
+				}
+			}
+			for (int g = 0; g < ground_to_cluster.length; g++) {
+				int k = l.ground_to_cluster[g];
+				ground_to_cluster[g] = (k < 0) ? -1 : to_this[k];
+			}
+		}else {
+			for(Cluster c : all_clusts) {
+				for(State s : c.c_to_s) {
+					ground_to_cluster[s.index] = c.index;
+				}
+			}
+		}
+
+		// the rewards, averaged over the states of the clusters while larger_mdp holds them
+		members_mdp = larger_mdp;
+		try {
+			rewards = new double[number_actions()][clusters.length];
+			for (int a = 0; a < rewards.length; a++) {
+				for(Cluster c : all_clusts) {
+					double d = 0.0;
+					for (State sn : c.c_to_s) 
+						d += larger_mdp.R(sn, a);
+					rewards[a][c.index] = d / c.c_to_s.size();
+				}
+			}
+		}catch (InvalidMDPException e) {
+			e.printError(); // the rewards get averaged on each call
+			rewards = null;
+		}
+
+		State[] ground_states = new State[ground_to_cluster.length];
+		for(State s : ground.getStates()) {
+			ground_states[s.index] = s;
+		}
+		try {
+			projections = new ProjectionTable[number_actions()];
+			for (int a = 0; a < projections.length; a++) {
+				projections[a] = new ProjectionTable(ground_states, ground, a, ground_to_cluster, clusters.length);
+			}
+		}catch (InvalidMDPException e) {
+			e.printError(); // the histograms get built from the parent links
+			projections = null;
+		}
+
+		if(D instanceof MappedDistanceMatrix) {
+			File dir = ((MappedDistanceMatrix) D).getFile().getParentFile();
+			try {
+				((MappedDistanceMatrix) D).flush();
+				saveMembership(membershipFile(dir, level));
+			}catch (IOException e) {
+				throw new IllegalStateException("could not save the clusters of level " + level + " in " + dir, e);
+			}
+		}
+	}
+
+	/**
+	 * @param dir : the scratch directory of a hierarchy (see Options.setScratchDir)
+	 * @param level : the number of a level, in the order the levels were built from 0 (see getLevel)
+	 * @return the file of the metric D of the level, to be reopened with MappedDistanceMatrix.open
+	 */
+	public static File distanceFile(File dir, int level) {
+		return new File(dir, "level" + level + ".dist");
+	}
+
+	/**
+	 * @param dir : the scratch directory of a hierarchy (see Options.setScratchDir)
+	 * @param level : the number of a level, in the order the levels were built from 0 (see getLevel)
+	 * @return the file of the membership of the ground states in the level, to be read with loadMembership
+	 */
+	public static File membershipFile(File dir, int level) {
+		return new File(dir, "level" + level + ".members");
+	}
+
+	// identifies the files written by saveMembership: "RLLab-M"
+	private static final long MEMBERSHIP_MAGIC = 0x524c4c61622d4d00L;
+
+	/**
+	 * Saves the membership of the ground states, in binary form: a header (magic number, number of 
+	 * clusters, number of ground states) followed by the index of the cluster of each ground state, -1 
+	 * for none, as big-endian ints. It can be read with loadMembership
+	 * @param f : the output file
+	 */
+	public void saveMembership(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			out.writeLong(MEMBERSHIP_MAGIC);
+			out.writeInt(clusters.length);
+			out.writeInt(ground_to_cluster.length);
+			for (int k : ground_to_cluster) {
+				out.writeInt(k);
+			}
+		}finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a membership saved by saveMembership
+	 * @param f : the file of the membership
+	 * @return the index of the cluster of each ground state, by index of the ground state, -1 for none
+	 */
+	public static int[] loadMembership(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		try {
+			if(in.readLong() != MEMBERSHIP_MAGIC) {
+				throw new IOException(f + " is not a membership");
+			}
+			in.readInt();
+			int[] toRet = new int[in.readInt()];
+			for (int g = 0; g < toRet.length; g++) {
+				toRet[g] = in.readInt();
+			}
+			return toRet;
+		}finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of this aggregate MDP in the order the levels of its hierarchy were built, from 0
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Closes the file of the metric D when it is kept in a scratch directory, after which D can not 
+	 * be used anymore; the files of the level are left in the directory (see distanceFile). Nothing to
+	 * do when D is in the heap
+	 */
+	@Override
+	public void close() throws IOException {
+		if(D instanceof MappedDistanceMatrix) {
+			((MappedDistanceMatrix) D).close();
+		}
+	}
+
+
+	/**
+	 * Settings used when building the clusters of an aggregate MDP
+	 */
+	public static class Options {
+
+		/**
+		 * Threshold T on the ground distance used by the EMD between histograms: ground 
+		 * distances become min(d, T). Negative if the exact EMD is used
+		 */
+		private double emdThreshold = -1;
+
+		public double getEmdThreshold() {
+			return emdThreshold;
+		}
+
+		/**
+		 * Trades exactness for speed: the EMD between transition histograms uses the thresholded 
+		 * ground distance min(d, T), which is still a metric, and only needs a smaller flow network
+		 * @param emdThreshold : the threshold T, in the units of the metric D; negative for exact EMD
+		 * @return these options
+		 */
+		public Options setEmdThreshold(double emdThreshold) {
+			this.emdThreshold = emdThreshold;
+			return this;
+		}
+
+		/**
+		 * Whether cheap bounds on the EMD are used to avoid running JFastEMD when they are enough 
+		 * to determine the distance between two states. Does not change the distances. Not used 
+		 * with the Sinkhorn approximation, whose values are not bounded by them
+		 */
+		private boolean emdBounds = true;
+
+		public boolean getEmdBounds() {
+			return emdBounds;
+		}
+
+		public Options setEmdBounds(boolean emdBounds) {
+			this.emdBounds = emdBounds;
+			return this;
+		}
+
+		/**
+		 * The algorithm used by JFastEMD to solve the transportation problems. It changes the 
+		 * running time only, not the distances. When set, every problem is solved by that engine,
+		 * including those small enough for the dedicated solver of JFastEMD; when null, JFastEMD 
+		 * picks, which means the dedicated solver for most transition histograms of GridMDP and 
+		 * PuddleMDP, and MIN_COST_FLOW for the others
+		 */
+		private EmdEngine emdEngine = null;
+
+		public EmdEngine getEmdEngine() {
+			return emdEngine;
+		}
+
+		public Options setEmdEngine(EmdEngine emdEngine) {
+			this.emdEngine = emdEngine;
+			return this;
+		}
+
+		/**
+		 * Regularization and tolerance of the Sinkhorn approximation of the EMD; a regularization
+		 * that is not positive means that the exact EMD is used
+		 */
+		private double sinkhornRegularization = -1;
+		private double sinkhornTolerance = 1e-6;
+
+		public double getSinkhornRegularization() {
+			return sinkhornRegularization;
+		}
+
+		public double getSinkhornTolerance() {
+			return sinkhornTolerance;
+		}
+
+		/**
+		 * Trades exactness for speed on histograms with large supports: the EMD between transition 
+		 * histograms is approximated by Sinkhorn iterations (see jFastEMD.Sinkhorn). The largest error
+		 * bound on the distances is then reported by getSinkhornErrorBound
+		 * @param regularization : the entropic regularization, relative to the largest ground distance 
+		 * between the two histograms (e.g. 0.01); not positive for the exact EMD
+		 * @param tolerance : the L1 error on the marginals at which the iterations stop
+		 * @return these options
+		 */
+		public Options setSinkhorn(double regularization, double tolerance) {
+			this.sinkhornRegularization = regularization;
+			this.sinkhornTolerance = tolerance;
+			return this;
+		}
+
+		/**
+		 * Directory in which the metric D is stored in memory-mapped files, or null if it is 
+		 * kept in the heap
+		 */
+		private File scratchDir = null;
+
+		public File getScratchDir() {
+			return scratchDir;
+		}
+
+		/**
+		 * Keeps the metric D out of the heap, for levels with many clusters: it is stored in a
+		 * memory-mapped file of the directory (see MappedDistanceMatrix), levelK.dist for the K-th 
+		 * level built in the hierarchy, next to the membership of the ground states in levelK.members.
+		 * The files are left there so that the level can be reopened later (see AggMDP.distanceFile), and
+		 * are overwritten by the levels of another hierarchy built in the same directory. The file of 
+		 * D stays open until AggMDP.close; building the level fails with an IllegalStateException if 
+		 * the files can not be written
+		 * @param scratchDir : the directory, null to keep D in the heap
+		 * @return these options
+		 */
+		public Options setScratchDir(File scratchDir) {
+			this.scratchDir = scratchDir;
+			return this;
+		}
+
+		/**
+		 * Executor running the comparisons of a state against the cluster representatives in 
+		 * parallel, or null to run them in the calling thread
+		 */
+		private ExecutorService executor = null;
+
+		public ExecutorService getExecutor() {
+			return executor;
+		}
+
+		/**
+		 * Compares each state against blocks of the cluster representatives in parallel. The first 
+		 * representative closer than epsilon is still the first in cluster order, so the clusters
+		 * and the metric are the same as without an executor; more EMDs may be computed though, 
+		 * as blocks after the first match may already be running. The executor is not shut down
+		 * @param executor : the executor, null to compare in the calling thread
+		 * @return these options
+		 */
+		public Options setExecutor(ExecutorService executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * Whether states with the same signature are put in the same cluster without comparing them
+		 */
+		private boolean signatureBuckets = true;
+
+		public boolean getSignatureBuckets() {
+			return signatureBuckets;
+		}
+
+		/**
+		 * Before comparing a state to the cluster representatives, its signature is looked up: the 
+		 * exact rewards for all actions (and, when refining, its histograms for all actions). A state 
+		 * with the signature of a state already clustered is at distance 0 from it, and at the same 
+		 * distance as it from every representative, so it joins the same cluster without any EMD. 
+		 * Does not change the clusters or the metric
+		 * @return these options
+		 */
+		public Options setSignatureBuckets(boolean signatureBuckets) {
+			this.signatureBuckets = signatureBuckets;
+			return this;
+		}
+
+		/**
+		 * Whether the cluster of a state is found with a metric index over the cluster representatives
+		 */
+		private boolean metricIndex = false;
+
+		public boolean getMetricIndex() {
+			return metricIndex;
+		}
+
+		/**
+		 * Finds the cluster of each state with a vantage-point tree over the cluster representatives, 
+		 * which uses the triangle inequality to skip the representatives that can not be closer than 
+		 * epsilon; the distances of a state that starts a new cluster are still all computed. The 
+		 * clusters and the metric are the same as with a scan of the representatives. Not used with 
+		 * the Sinkhorn approximation, which is not exactly a metric, and takes precedence over the 
+		 * parallel comparison of a state against the representatives
+		 * @return these options
+		 */
+		public Options setMetricIndex(boolean metricIndex) {
+			this.metricIndex = metricIndex;
+			return this;
+		}
+
+		/**
+		 * Cache of the histograms of the cluster representatives, or null to compute them for each 
+		 * comparison
+		 */
+		private HistogramCache histogramCache = new HistogramCache();
+
+		public HistogramCache getHistogramCache() {
+			return histogramCache;
+		}
+
+		/**
+		 * The histograms of a cluster representative are otherwise recomputed for each state compared
+		 * to it. A cache can be shared by the options of several levels, and reports its hits and misses
+		 * @param histogramCache : the cache, null for none
+		 * @return these options
+		 */
+		public Options setHistogramCache(HistogramCache histogramCache) {
+			this.histogramCache = histogramCache;
+			return this;
+		}
+
+		/**
+		 * Whether the EMD between a histogram and the histogram of a cluster representative is 
+		 * warm started from the previous EMD computed with that representative histogram.
+		 * Warm started EMDs are always solved on the network, by the SUCCESSIVE_SHORTEST_PATH 
+		 * engine unless another engine is set (the other engines ignore the warm start)
+		 */
+		private boolean emdWarmStart = false;
+
+		public boolean getEmdWarmStart() {
+			return emdWarmStart;
+		}
+
+		public Options setEmdWarmStart(boolean emdWarmStart) {
+			this.emdWarmStart = emdWarmStart;
+			return this;
+		}
 	}
 
 
@@ -208,73 +830,588 @@ public class AggMDP extends MDP{
 		public double compare(State s1, State s2) ;
 	}
 
-	private List<Cluster> decluster(Collection<State> states, StateComp cmp, List<List<Double>> distances) {
+	/**
+	 * A state comparator that can compare one state against a list of states at once, 
+	 * so that what only depends on the first state is computed a single time
+	 */
+	public interface BatchStateComp extends StateComp {
+		/**
+		 * Compares s1 against the states in others, in order
+		 * @param s1 : the state to compare
+		 * @param others : the states s1 gets compared to
+		 * @param epsilon : the comparisons stop at the first state closer than epsilon to s1
+		 * @return the distances to the states in others, NaN for the ones after the first state 
+		 * closer than epsilon
+		 */
+		public double[] compareAll(State s1, List<State> others, double epsilon);
+
+		/**
+		 * Prepares s1 to be compared against states one at a time
+		 * @param s1 : the state to compare
+		 * @return the distance from s1
+		 */
+		public PreparedStateComp prepare(State s1);
+	}
+
+	/**
+	 * A state comparator whose distances only depend on a signature of the states: two states with 
+	 * equal signatures are at distance 0, and at the same distance from any state
+	 */
+	public interface SignedStateComp extends StateComp {
+		/**
+		 * @param s : a state
+		 * @return the signature of s, or null if it can not be computed
+		 */
+		public long[] signature(State s);
+	}
+
+	/**
+	 * The distance from a given state, to be compared against states one at a time
+	 */
+	public interface PreparedStateComp {
+		public double compareTo(State s2);
+	}
+
+	/**
+	 * Compares states based on their rewards and on the EMD between their transition histograms 
+	 * over the clusters of an aggregate MDP (probability-based):
+	 * distance(o1, o2) = max_a (|R(o1,a) - R(o2,a)| + r D(P_o1^a, P_o2^a))
+	 * Before running JFastEMD for an action, cheap bounds are checked: the reward difference is a lower 
+	 * bound for each term, and the total variation between the histograms times their largest ground 
+	 * distance gives an upper bound. The EMD is skipped when the upper bound cannot change the maximum, 
+	 * so the distances are the same as without the bounds.
+	 * The EMD can also be replaced by its Sinkhorn approximation, see Options.setSinkhorn
+	 */
+	private class HistogramComp implements BatchStateComp, SignedStateComp {
+
+		private final AggMDP histogram_mdp;
+		private final double emd_threshold;
+		private final boolean use_bounds;
+		private final EmdEngine emd_engine;
+		// one Sinkhorn solver per thread, or null when the exact EMD is used
+		private final ThreadLocal<Sinkhorn> sinkhorn;
+		// the last EMD solve of each action for each representative, or null without warm starts
+		private final ConcurrentMap<State, WarmStart[]> warm_starts;
+		// the histograms of the cluster representatives, or null
+		private final HistogramCache histogram_cache;
+		// runs the comparisons against blocks of representatives, or null
+		private final ExecutorService executor;
+		// the last state signed by each thread with its histograms, which decluster then compares
+		private final ThreadLocal<SignedHistograms> signed = new ThreadLocal<SignedHistograms>() {
+			@Override
+			protected SignedHistograms initialValue() {
+				return new SignedHistograms();
+			}
+		};
+
+		/**
+		 * @param histogram_mdp : the aggregate MDP over whose clusters the histograms are built
+		 * @param opts : settings used when comparing the states
+		 */
+		public HistogramComp(AggMDP histogram_mdp, Options opts) {
+			this(histogram_mdp, opts, opts.getExecutor());
+		}
+
+		/**
+		 * @param histogram_mdp : the aggregate MDP over whose clusters the histograms are built
+		 * @param opts : settings used when comparing the states
+		 * @param executor : runs the comparisons against blocks of representatives, instead of the 
+		 * executor of opts; null to compare in the calling thread
+		 */
+		public HistogramComp(AggMDP histogram_mdp, Options opts, ExecutorService executor) {
+			this.histogram_mdp = histogram_mdp;
+			this.emd_threshold = opts.getEmdThreshold();
+			// the bounds hold for the EMD, not for its Sinkhorn approximation, which can exceed it
+			this.use_bounds = opts.getEmdBounds() && opts.getSinkhornRegularization() <= 0;
+			// only the successive shortest path engine uses the warm starts
+			this.emd_engine = (opts.getEmdEngine() == null && opts.getEmdWarmStart()) 
+					? EmdEngine.SUCCESSIVE_SHORTEST_PATH : opts.getEmdEngine();
+			if(opts.getSinkhornRegularization() > 0) {
+				final double regularization = opts.getSinkhornRegularization();
+				final double tolerance = opts.getSinkhornTolerance();
+				this.sinkhorn = new ThreadLocal<Sinkhorn>() {
+					@Override
+					protected Sinkhorn initialValue() {
+						return new Sinkhorn(regularization, tolerance);
+					}
+				};
+			}else {
+				this.sinkhorn = null;
+			}
+			this.warm_starts = opts.getEmdWarmStart() ? new ConcurrentHashMap<State, WarmStart[]>() : null;
+			this.histogram_cache = opts.getHistogramCache();
+			this.executor = executor;
+		}
+
+		@Override
+		public double compare(State o1, State o2) {
+			try {
+				return distance(o1, histograms(o1), null, o2, -1);
+			}catch (InvalidMDPException e) {
+				e.printError();
+				return -1;
+			}
+		}
+
+		@Override
+		public PreparedStateComp prepare(final State o1) {
+			try {
+				final Histogram[] h1 = signedHistograms(o1);
+				final EmdSolver.Query[] q1 = prepareQueries(h1);
+				return new PreparedStateComp() {
+					@Override
+					public double compareTo(State o2) {
+						try {
+							return distance(o1, h1, q1, o2, -1);
+						}catch (InvalidMDPException e) {
+							e.printError();
+							return -1;
+						}
+					}
+				};
+			}catch (final InvalidMDPException e) {
+				return new PreparedStateComp() {
+					@Override
+					public double compareTo(State o2) {
+						e.printError();
+						return -1;
+					}
+				};
+			}
+		}
+
+		// the histograms h1 prepared for the JFastEMD solver of this thread, or null for Sinkhorn
+		private EmdSolver.Query[] prepareQueries(Histogram[] h1) {
+			if(sinkhorn != null) return null;
+			EmdSolver.Query[] q1 = new EmdSolver.Query[h1.length];
+			for (int i = 0; i < h1.length; i++) {
+				q1[i] = JFastEMD.solver().prepare(h1[i]);
+			}
+			return q1;
+		}
+
+		@Override
+		public double[] compareAll(State o1, List<State> others, double epsilon) {
+			double[] toRet = new double[others.size()];
+			Arrays.fill(toRet, Double.NaN);
+			try {
+				// the histograms of o1 are built only once
+				Histogram[] h1 = signedHistograms(o1);
+				if(executor == null || others.size() < 2 * PARALLEL_BLOCK) {
+					compareBlock(o1, h1, others, 0, others.size(), epsilon, toRet, null);
+				}else {
+					compareInParallel(o1, h1, others, epsilon, toRet);
+				}
+			}catch (InvalidMDPException e) {
+				e.printError();
+				if(toRet.length > 0) toRet[0] = -1;
+			}
+			return toRet;
+		}
+
+		/**
+		 * Compares o1 against others[from] .. others[to-1] in order, until the first one closer than 
+		 * epsilon or, if first is not null, after first
+		 * @param toRet : receives the distances, -1 for a comparison that failed
+		 * @param first : the index of the first match over all blocks, lowered by this block; or null
+		 */
+		private void compareBlock(State o1, Histogram[] h1, List<State> others, int from, int to, 
+				double epsilon, double[] toRet, AtomicInteger first) {
+			// the histograms of o1 are prepared for the JFastEMD solver of this thread
+			EmdSolver.Query[] q1 = prepareQueries(h1);
+			for (int k = from; k < to; k++) {
+				if(first != null && k > first.get()) return;
+				try {
+					toRet[k] = distance(o1, h1, q1, others.get(k), epsilon);
+				}catch (InvalidMDPException e) {
+					e.printError();
+					toRet[k] = -1;
+				}
+				if(toRet[k] < epsilon) {
+					if(first != null) {
+						int f = first.get();
+						while(k < f && !first.compareAndSet(f, k)) f = first.get();
+					}
+					return;
+				}
+			}
+		}
+
+		// compareAll, with blocks of representatives compared by the executor
+		private void compareInParallel(final State o1, final Histogram[] h1, final List<State> others, 
+				final double epsilon, final double[] toRet) {
+			int n = others.size();
+			final AtomicInteger first = new AtomicInteger(n);
+			int block = Math.max(PARALLEL_BLOCK, 
+					(n + 4 * Runtime.getRuntime().availableProcessors() - 1) / (4 * Runtime.getRuntime().availableProcessors()));
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int from = 0; from < n; from += block) {
+				final int lo = from;
+				final int hi = Math.min(n, from + block);
+				tasks.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						compareBlock(o1, h1, others, lo, hi, epsilon, toRet, first);
+					}
+				}));
+			}
+			for (Future<?> t : tasks) {
+				await(t);
+			}
+			// as in a sequential scan, nothing is compared after the first match
+			for (int k = first.get() + 1; k < n; k++) {
+				toRet[k] = Double.NaN;
+			}
+		}
+
+		// the warm start of the comparisons against o for action a. A representative is only 
+		// compared by one thread at a time, so its warm starts are not shared
+		private WarmStart warmStart(State o, int a) {
+			WarmStart[] ws = warm_starts.get(o);
+			if(ws == null) {
+				ws = new WarmStart[histogram_mdp.number_actions()];
+				for (int i = 0; i < ws.length; i++) {
+					ws[i] = new WarmStart();
+				}
+				WarmStart[] prev = warm_starts.putIfAbsent(o, ws);
+				if(prev != null) ws = prev;
+			}
+			return ws[a];
+		}
+
+		// the rewards and the histograms of s for all actions, exactly
+		@Override
+		public long[] signature(State s) {
+			try {
+				Histogram[] h = histograms(s);
+				SignedHistograms last = signed.get();
+				last.state = s;
+				last.histograms = h;
+				int n = 2 * h.length;
+				for (Histogram hi : h) n += 2 * hi.size();
+				long[] sig = new long[n];
+				int k = 0;
+				for (int i = 0; i < h.length; i++) {
+					sig[k++] = Double.doubleToLongBits(s.R(i));
+					sig[k++] = h[i].size();
+					for (int j = 0; j < h[i].size(); j++) {
+						sig[k++] = h[i].stateIdx(j);
+						sig[k++] = Double.doubleToLongBits(h[i].mass(j));
+					}
+				}
+				return sig;
+			}catch (InvalidMDPException e) {
+				return null;
+			}
+		}
+
+		// the histograms of o for all actions, built by signature if o is the last state it signed in 
+		// this thread; they are only used once
+		private Histogram[] signedHistograms(State o) throws InvalidMDPException {
+			SignedHistograms last = signed.get();
+			Histogram[] h = (last.state == o) ? last.histograms : histograms(o);
+			last.state = null;
+			last.histograms = null;
+			return h;
+		}
+
+		// the histograms of o for all actions
+		private Histogram[] histograms(State o) throws InvalidMDPException {
+			int num_a = histogram_mdp.number_actions();
+			Histogram[] h = new Histogram[num_a];
+			for (int i = 0; i < num_a; i++) {
+				h[i] = o.histogram(i, histogram_mdp);
+			}
+			return h;
+		}
+
+		// the histogram of o for action a, where o is the state compared against (i.e. a cluster 
+		// representative, which is compared against many states)
+		private Histogram histogram(State o, int a) throws InvalidMDPException {
+			if(histogram_cache == null) return o.histogram(a, histogram_mdp);
+			return histogram_cache.histogram(o, a, histogram_mdp);
+		}
+
+		/**
+		 * The distance between o1 and o2
+		 * @param h1 : the histograms of o1
+		 * @param q1 : the histograms of o1 prepared for JFastEMD, or null
+		 * @param epsilon : if not negative, distances smaller than epsilon are not needed exactly, and
+		 * any value smaller than epsilon may be returned for them
+		 */
+		private double distance(State o1, Histogram[] h1, EmdSolver.Query[] q1, State o2, double epsilon) 
+				throws InvalidMDPException {
+			if(emd_engine == null) return engineDistance(o1, h1, q1, o2, epsilon);
+			// the solver of this thread is shared with the other users of JFastEMD, so its engine is restored.
+			// The engine asked for solves all the problems, including the small ones
+			EmdSolver solver = JFastEMD.solver();
+			EmdEngine previous = solver.getEngine();
+			int previousLimit = solver.getSmallSupportLimit();
+			solver.setEngine(emd_engine);
+			solver.setSmallSupportLimit(0);
+			try {
+				return engineDistance(o1, h1, q1, o2, epsilon);
+			}finally {
+				solver.setEngine(previous);
+				solver.setSmallSupportLimit(previousLimit);
+			}
+		}
+
+		// distance(o1, h1, q1, o2, epsilon), once the engine of the solver is set
+		private double engineDistance(State o1, Histogram[] h1, EmdSolver.Query[] q1, State o2, double epsilon) 
+				throws InvalidMDPException {
+			int num_a = h1.length;
+			Histogram[] h2 = new Histogram[num_a];
+			double[] upper = new double[num_a];
+			double lower = 0;
+			double maxUpper = 0;
+			for (int i = 0; i < num_a; i++) {
+				h2[i] = histogram(o2, i);
+				double rewardDistance = Math.abs(o1.R(i) - o2.R(i));
+				upper[i] = use_bounds 
+						? rewardDistance + GAMMA*h1[i].emdUpperBound(h2[i], emd_threshold) / 100.0 
+						: Double.POSITIVE_INFINITY;
+				// histograms with different masses give a negative EMD, which is not bounded by the reward
+				if(upper[i] != Double.POSITIVE_INFINITY) lower = Math.max(lower, rewardDistance);
+				maxUpper = Math.max(maxUpper, upper[i]);
+			}
+			if(epsilon >= 0 && maxUpper < epsilon) {
+				emd_calls_avoided.addAndGet(num_a);
+				return maxUpper;
+			}
+
+			// the terms with the largest upper bounds are the most likely to give the maximum
+			double maxDistance = lower;
+			boolean[] done = new boolean[num_a];
+			for (int n = 0; n < num_a; n++) {
+				int i = -1;
+				for (int j = 0; j < num_a; j++) {
+					if(!done[j] && (i == -1 || upper[j] > upper[i])) i = j;
+				}
+				done[i] = true;
+				if(upper[i] <= maxDistance) {
+					emd_calls_avoided.incrementAndGet();
+					continue;
+				}
+				double probDistance;
+				if(sinkhorn != null) {
+					Sinkhorn.Result res = h1[i].compareToSinkhorn(h2[i], sinkhorn.get(), emd_threshold);
+					probDistance = res.getDistance();
+					updateSinkhornErrorBound(GAMMA*res.getErrorBound() / 100.0);
+				}else if(q1 == null) {
+					probDistance = h1[i].compareToJFastEMD(h2[i], emd_threshold);
+				}else if(warm_starts != null) {
+					probDistance = h1[i].compareToJFastEMD(h2[i], q1[i], emd_threshold, warmStart(o2, i));
+				}else {
+					probDistance = h1[i].compareToJFastEMD(h2[i], q1[i], emd_threshold);
+				}
+				emd_calls.incrementAndGet();
+				double distance = Math.abs(o1.R(i) - o2.R(i)) + GAMMA*probDistance / 100.0;
+				maxDistance = (maxDistance > distance) ? maxDistance : distance;
+			}
+			return maxDistance;
+		}
+	}
+
+	/**
+	 * Creates the metric D of this aggregate MDP, in the file of its level in the scratch directory 
+	 * of opts if it has one, in the heap otherwise
+	 * @param expected_rows : the expected number of clusters
+	 * @throws IllegalStateException if the file can not be created, with the IOException as cause
+	 */
+	private DistanceMatrix newDistanceMatrix(Options opts, int expected_rows) {
+		if(opts.getScratchDir() != null) {
+			File f = distanceFile(opts.getScratchDir(), level);
+			try {
+				return new MappedDistanceMatrix(f);
+			}catch(IOException e) {
+				throw new IllegalStateException("could not create " + f, e);
+			}
+		}
+		return new PackedDistanceMatrix(expected_rows);
+	}
+
+	/**
+	 * Smallest number of representatives compared by a task when comparing in parallel
+	 */
+	private static final int PARALLEL_BLOCK = 8;
+
+	/**
+	 * Side of the tiles of D computed by a task when declustering in parallel
+	 */
+	private static final int PARALLEL_TILE = 64;
+
+	/**
+	 * Two states are placed in the same cluster when their distance is smaller than this
+	 * TODO: magic number(epsilon)
+	 */
+	private static final double SAME_CLUSTER_EPSILON = 0.00001;
+
+	/**
+	 * Splits states into clusters of states whose distance is below SAME_CLUSTER_EPSILON
+	 * @param states : the states to cluster
+	 * @param cmp : the distance between states
+	 * @param distances : receives the distances between the new clusters, in its rows offset onwards
+	 * @param offset : the index of the first new cluster
+	 * @return the new clusters, with indices from offset on
+	 */
+	private List<Cluster> decluster(Collection<State> states, StateComp cmp, DistanceMatrix distances, int offset) {
 		//initialize all_clusts to empty, then try to create new clusters using the states 
 		// in the underlying MDP
-		List<Cluster> toRet = new LinkedList<Cluster>();
+		List<Cluster> toRet = new ArrayList<Cluster>();
+		
+		// the first state of each cluster, which all other states get compared to
+		List<State> reps = new ArrayList<State>();
+
+		// index of reps, or null to scan them
+		RepresentativeIndex index = metric_index ? new RepresentativeIndex(SAME_CLUSTER_EPSILON, distances, offset) : null;
+
+		// the cluster of the states clustered so far, by signature; or null
+		Map<SignatureKey, Cluster> buckets = (signature_buckets && cmp instanceof SignedStateComp) 
+				? new HashMap<SignatureKey, Cluster>() : null;
 
 		// find the cluster associated with each state
 		for (State s : states) {
+			SignatureKey key = null;
+			if(buckets != null) {
+				long[] sig = ((SignedStateComp) cmp).signature(s);
+				if(sig != null) {
+					key = new SignatureKey(sig);
+					Cluster c = buckets.get(key);
+					if(c != null) {
+						c.c_to_s.add(s);
+						bucketed_states.incrementAndGet();
+						continue;
+					}
+				}
+			}
+
 			// if no cluster has measure, then create new cluster
 			boolean new_clust = true;
 
-			// list storing all distances from all previous clusters to the current cluster
-			List<Double> dist_list = new LinkedList<Double>();
+			// distances from all previous clusters to the current cluster
+			double[] dists;
 			
-			for (Cluster c : toRet) {
-				double dist = cmp.compare(s,c.c_to_s.get(0));
-				
-				//check whether the state are the same or not
-				if(dist < 0.00001) { // add state to cluster TODO: magic number(epsilon)
-					c.c_to_s.add(s);
-					new_clust = false; // don't create a new clust
-					break;
+			if(index != null) {
+				PreparedStateComp pcmp = prepare(cmp, s);
+				dists = new double[reps.size()];
+				Arrays.fill(dists, Double.NaN);
+				int k = index.firstWithin(pcmp, reps, SAME_CLUSTER_EPSILON, dists);
+				if(k >= 0) {
+					toRet.get(k).c_to_s.add(s);
+					new_clust = false;
+					if(key != null) buckets.put(key, toRet.get(k));
+				}
+				// the distances skipped by the index are needed for a new cluster
+				for (int j = 0; j < dists.length; j++) {
+					if(!Double.isNaN(dists[j])) {
+						rep_comparisons.incrementAndGet();
+					}else if(new_clust) {
+						dists[j] = pcmp.compareTo(reps.get(j));
+						rep_comparisons.incrementAndGet();
+					}
 				}
-				else{ // add the distance to the list
-					dist_list.add(dist);
+			}else if(cmp instanceof BatchStateComp) {
+				dists = ((BatchStateComp) cmp).compareAll(s, reps, SAME_CLUSTER_EPSILON);
+				for (int k = 0; k < dists.length && !Double.isNaN(dists[k]); k++) {
+					rep_comparisons.incrementAndGet();
 				}
-			} // for c
+				for (int k = 0; k < dists.length && new_clust; k++) {
+					//check whether the state are the same or not
+					if(dists[k] < SAME_CLUSTER_EPSILON) { // add state to cluster
+						toRet.get(k).c_to_s.add(s);
+						new_clust = false; // don't create a new clust
+						if(key != null) buckets.put(key, toRet.get(k));
+					}
+				}
+			}else {
+				dists = new double[toRet.size()];
+				for (int k = 0; k < toRet.size(); k++) {
+					Cluster c = toRet.get(k);
+					dists[k] = cmp.compare(s,c.c_to_s.get(0));
+					rep_comparisons.incrementAndGet();
+
+					//check whether the state are the same or not
+					if(dists[k] < SAME_CLUSTER_EPSILON) { // add state to cluster
+						c.c_to_s.add(s);
+						new_clust = false; // don't create a new clust
+						if(key != null) buckets.put(key, c);
+						break;
+					}
+				} // for c
+			}
 			
 			if(new_clust) { //create new clust
-				Cluster c_new = new Cluster(this, toRet.size());
+				Cluster c_new = new Cluster(this, offset + toRet.size());
 				c_new.c_to_s.add(s); //add the only state it contains, for now				
+				// add the distances collected so far
+				distances.ensureRows(c_new.index + 1);
+				for (int k = 0; k < toRet.size(); k++) {
+					distances.set(c_new.index, offset + k, dists[k]);
+				}
 				toRet.add(c_new); 
-				distances.add(dist_list); // add the distances collected so far
+				reps.add(s);
+				if(index != null) index.insert(reps.size() - 1, dists);
+				if(key != null) buckets.put(key, c_new);
 			}						
 		} // for s
 
 		return toRet;
 	}
 
-	// convert the list of lists to an array of arrays
-	private double[][] convertToMatrix(List<List<Double>> distances) {
-		int n = distances.size();
-		double D[][] = new double[n][];
-		for (int i = 0; i < n; i++){
-			int w = distances.get(i).size();
-			if(w != 0) {
-				D[i] = new double[w];
-				int j = 0;
-				for (Double d: distances.get(i)){
-					D[i][j] = d;
-					j++;
-				}
-			}
-		}
-		return D;
+	/**
+	 * A state and its histograms for all actions
+	 */
+	private static final class SignedHistograms {
+		State state;
+		Histogram[] histograms;
 	}
 
+	/**
+	 * A signature of a state, as a key of a hash map
+	 */
+	private static final class SignatureKey {
+		private final long[] sig;
+		private final int hash;
+
+		SignatureKey(long[] sig) {
+			this.sig = sig;
+			this.hash = Arrays.hashCode(sig);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
 
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof SignatureKey) && hash == ((SignatureKey) o).hash 
+					&& Arrays.equals(sig, ((SignatureKey) o).sig);
+		}
+	}
+
+	// the distance from s, prepared by cmp if it can
+	private static PreparedStateComp prepare(final StateComp cmp, final State s) {
+		if(cmp instanceof BatchStateComp) return ((BatchStateComp) cmp).prepare(s);
+		return new PreparedStateComp() {
+			@Override
+			public double compareTo(State s2) {
+				return cmp.compare(s, s2);
+			}
+		};
+	}
 
 	@Override
 	public double R(State c, int a) throws InvalidMDPException{
 
 		if (c.sameMdp(this)) {
+			if(rewards != null) return rewards[a][c.index];
 			double d = 0.0;
 			Cluster cc = (Cluster) c;
 			Collection<State> sns = cc.c_to_s;
 			for (State sn : sns) 
-				d += larger_mdp.R(sn, a);
+				d += members_mdp.R(sn, a);
 			return d / sns.size();
 		}else throw new InvalidMDPException();
 
@@ -282,32 +1419,197 @@ public class AggMDP extends MDP{
 
 	@Override
 	public double P(State c, int a, State cn) throws InvalidMDPException{
-		double d = 0.0;
 		if (c.sameMdp(this) && cn.sameMdp(this)) {
-			Cluster cc = (Cluster) c;
-			Collection<State> ss = cc.c_to_s;
-			cc = (Cluster) cn;
-			Collection<State> sns = cc.c_to_s;
-
-			for (State si : ss)
-				for (State sni : sns)  
-					d += larger_mdp.P(si, a, sni);				
-			return d / ss.size();
+			if(p_ptr == null) setTransitions();
+			int k = Arrays.binarySearch(p_idx[a], p_ptr[a][c.index], p_ptr[a][c.index + 1], cn.index);
+			return (k >= 0) ? p_val[a][k] : 0.0;
 		}else throw new InvalidMDPException();
 
 	}
 
+	/**
+	 * Fills p_ptr, p_idx and p_val: the probability of transitioning from cluster c to cluster cn is 
+	 * the sum, over the states si of c and the states sni of cn, of P(si, a, sni), divided by the size 
+	 * of c. Only the states sni si can transition to are looked at: those of its histogram, or of its 
+	 * row of P when the states are clusters of an aggregate MDP, whose histograms only hold the 
+	 * transitions of their base state
+	 */
+	private synchronized void setTransitions() throws InvalidMDPException {
+		if(p_ptr != null) return;
+		int[] to_this = new int[members_mdp.number_states()];
+		Arrays.fill(to_this, -1);
+		for(Cluster c : all_clusts) {
+			for(State s : c.c_to_s) {
+				to_this[s.index] = c.index;
+			}
+		}
+
+		int num_a = number_actions();
+		int[][] ptr = new int[num_a][clusters.length + 1];
+		int[][] idx = new int[num_a][];
+		double[][] val = new double[num_a][];
+		double[] acc = new double[clusters.length];
+		int[] touched = new int[clusters.length];
+		AggMDP members_agg = null;
+		State[] members = null;
+		if(members_mdp instanceof AggMDP) {
+			members_agg = (AggMDP) members_mdp;
+			if(members_agg.p_ptr == null) members_agg.setTransitions();
+		}else {
+			members = new State[to_this.length];
+			for (State s : members_mdp.getStates()) {
+				members[s.index] = s;
+			}
+		}
+		// the next states of a member and their weights
+		int[] row_idx = new int[0];
+		double[] row_w = new double[0];
+		for (int a = 0; a < num_a; a++) {
+			idx[a] = new int[clusters.length];
+			val[a] = new double[clusters.length];
+			int nnz = 0;
+			for (int c = 0; c < clusters.length; c++) {
+				int n = 0;
+				for (State si : clusters[c].c_to_s) {
+					if(members_agg != null) {
+						// the row of si in the sparse P of the aggregate MDP of the members
+						for (int k = members_agg.p_ptr[a][si.index]; k < members_agg.p_ptr[a][si.index + 1]; k++) {
+							int cn = to_this[members_agg.p_idx[a][k]];
+							double p = members_agg.p_val[a][k];
+							if(cn < 0 || p == 0) continue;
+							if(acc[cn] == 0 && !contains(touched, n, cn)) touched[n++] = cn;
+							acc[cn] += p;
+						}
+						continue;
+					}
+					Map<State,Double> tm_s = members_mdp.getHistogram(si, a);
+					if(row_idx.length < tm_s.size()) {
+						row_idx = new int[tm_s.size()];
+						row_w = new double[tm_s.size()];
+					}
+					int row = TransitionView.copyRow(tm_s, row_idx, row_w, 0);
+					for (int k = 0; k < row; k++) {
+						int cn = to_this[row_idx[k]];
+						if(cn < 0) continue;
+						double p = members_mdp.P(si, a, members[row_idx[k]]);
+						if(p == 0) continue;
+						if(acc[cn] == 0 && !contains(touched, n, cn)) touched[n++] = cn;
+						acc[cn] += p;
+					}
+				}
+				Arrays.sort(touched, 0, n);
+				if(nnz + n > idx[a].length) {
+					idx[a] = Arrays.copyOf(idx[a], Math.max(2 * idx[a].length, nnz + n));
+					val[a] = Arrays.copyOf(val[a], idx[a].length);
+				}
+				for (int k = 0; k < n; k++) {
+					idx[a][nnz] = touched[k];
+					val[a][nnz++] = acc[touched[k]] / clusters[c].c_to_s.size();
+					acc[touched[k]] = 0;
+				}
+				ptr[a][c + 1] = nnz;
+			}
+		}
+		p_idx = idx;
+		p_val = val;
+		p_ptr = ptr;
+	}
+
+	private static boolean contains(int[] touched, int n, int c) {
+		for (int k = 0; k < n; k++) {
+			if(touched[k] == c) return true;
+		}
+		return false;
+	}
+
 	@Override
 	public int number_states() {		
 		return all_clusts.size();
 	}
 
+	/**
+	 * @return the MDP whose states are aggregated by this MDP
+	 */
+	MDP getLargerMDP() {
+		return larger_mdp;
+	}
+
 
 	@Override
 	public int number_actions() {
 		return larger_mdp.number_actions();
 	}	
 
+	/**
+	 * @param index : the index of a cluster, from 0 to SIZE-1
+	 * @return the cluster with that index
+	 */
+	public Cluster getCluster(int index) {
+		return clusters[index];
+	}
+
+	/**
+	 * @param ground_index : the index of a state of the MDP at the bottom of the hierarchy
+	 * @return the cluster of this aggregate MDP to which the ground state pertains, or null
+	 */
+	public Cluster clusterOfGroundState(int ground_index) {
+		int k = ground_to_cluster[ground_index];
+		return (k < 0) ? null : clusters[k];
+	}
+
+	/**
+	 * @return the transitions of the ground states projected on the clusters for action a, or null
+	 */
+	ProjectionTable projection(int a) {
+		return (projections == null) ? null : projections[a];
+	}
+
+	int getStructureVersion() {
+		return structure_version;
+	}
+
+	/**
+	 * @return the number of comparisons between states and cluster representatives made when building 
+	 * this aggregate MDP, not counting the distances between the clusters of different parent clusters
+	 */
+	public long getRepresentativeComparisons() {
+		return rep_comparisons.get();
+	}
+
+	/**
+	 * @return the number of states placed in a cluster by their signature, without any comparison, 
+	 * when building this aggregate MDP
+	 */
+	public long getBucketedStates() {
+		return bucketed_states.get();
+	}
+
+	/**
+	 * @return the number of EMD computations run when building this aggregate MDP
+	 */
+	public long getEmdCalls() {
+		return emd_calls.get();
+	}
+
+	/**
+	 * @return the number of EMD computations that bounds made unnecessary when building this aggregate MDP
+	 */
+	public long getEmdCallsAvoided() {
+		return emd_calls_avoided.get();
+	}
+
+	private synchronized void updateSinkhornErrorBound(double bound) {
+		sinkhorn_error_bound = Math.max(sinkhorn_error_bound, bound);
+	}
+
+	/**
+	 * @return a bound on the error of the distances D of this aggregate MDP when they were computed 
+	 * with the Sinkhorn approximation of the EMD, 0 otherwise
+	 */
+	public synchronized double getSinkhornErrorBound() {
+		return sinkhorn_error_bound;
+	}
+
 	@Override
 	public Map<State,Double> getHistogram(State c, int a) throws InvalidMDPException{
 		State cb = c.baseState();
@@ -336,10 +1638,10 @@ public class AggMDP extends MDP{
 			}toRet += "\n";
 		}
 		toRet += "\n\n METRIC \n\n";
-		for (int i=1 ; i < D.length ; i++) {			
-			for (int j = 0; j < D[i].length; j++) {
+		for (int i=1 ; i < D.size() ; i++) {			
+			for (int j = 0; j < i; j++) {
 				DecimalFormat df = new DecimalFormat("###.##");
-				String d = df.format(D[i][j]);
+				String d = df.format(D.get(i, j));
 				toRet += d + " ";
 			}toRet += "\n";
 		}
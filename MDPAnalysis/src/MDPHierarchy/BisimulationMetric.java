@@ -0,0 +1,330 @@
+package MDPHierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jFastEMD.Feature;
+import jFastEMD.JFastEMD;
+import jFastEMD.Signature;
+import MDPHierarchy.MDP.InvalidMDPException;
+import MDPHierarchy.MDP.State;
+
+/**
+ * Computes the bisimulation metric of an MDP over all pairs of its states, as the fixed point of
+ * the operator applied by AggMDP between levels:
+ * d'(s, t) = max_a |R(s,a) - R(t,a)| + GAMMA * EMD_d(P(s,a), P(t,a)) / 100,
+ * starting from d = 0. The iterations are Jacobi sweeps: d' is computed from d only, into a second
+ * packed matrix, by parallel tasks on ranges of rows when there is an executor.
+ * The EMD of a pair only depends on the distances between the states its histograms have mass on,
+ * so a pair is skipped while these distances barely moved since it was last computed: the operator 
+ * being a contraction of factor GAMMA, the pair is within GAMMA times their accumulated change (its 
+ * drift) of its value under the operator. That bound is kept within tolerance * (1 - GAMMA) / 2, so that 
+ * the error of the skipped pairs can not keep the steps above the tolerance (with errors e, the steps
+ * shrink down to 2 * GAMMA * e / (1 - GAMMA)). The residual of a sweep bounds the sup-norm step 
+ * |d' - d| of a full sweep: the largest change of the pairs computed, or GAMMA times the drift of the
+ * pairs skipped. It is recorded for each iteration. Once it is within the tolerance, a full sweep 
+ * confirms it, so that the metric returned is d' = T(d) with |T(d) - d| <= tolerance, within 
+ * tolerance * GAMMA / (1 - GAMMA) of the fixed point
+ */
+public class BisimulationMetric {
+
+	// number of tasks a sweep is split into when there is an executor
+	private static final int SWEEP_TASKS = 64;
+
+	/**
+	 * A state, as a feature of the signatures given to JFastEMD, at the distances of the current metric
+	 */
+	private class Point implements Feature {
+		private final int index;
+
+		Point(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public double groundDist(Feature f) {
+			return current.get(index, ((Point) f).index);
+		}
+	}
+
+	private final int n;
+	private final double gamma;
+
+	/**
+	 * For each action, the reward and the transition histogram of each state, by index of the state;
+	 * the states of the histograms are sorted by index
+	 */
+	private final double[][] reward;
+	private final Signature[][] histogram;
+	private final int[][][] support;
+
+	/**
+	 * The metric of the last sweep and the one being computed, with the change of each pair in the
+	 * last sweep and in the current one, and the bound on how much each pair moved since it was
+	 * last computed
+	 */
+	private PackedDistanceMatrix current;
+	private PackedDistanceMatrix next;
+	private double[] change;
+	private double[] next_change;
+	private double[] drift;
+	private double skip_tolerance;
+
+	private double tolerance = 1e-4;
+	private int max_iterations = 1000;
+	private ExecutorService executor = null;
+
+	private final List<Double> residuals = new ArrayList<Double>();
+	private final List<Long> computed_pairs = new ArrayList<Long>();
+
+	/**
+	 * Reads the rewards and transitions of all states of m under all actions
+	 * @param m : the MDP whose states are compared; its histograms are over its own states
+	 */
+	public BisimulationMetric(MDP m) throws InvalidMDPException {
+		n = m.number_states();
+		gamma = m.GAMMA;
+		int num_a = m.number_actions();
+		State[] states = new State[n];
+		for (State s : m.getStates()) {
+			states[s.idx()] = s;
+		}
+		Point[] points = new Point[n];
+		for (int s = 0; s < n; s++) {
+			points[s] = new Point(s);
+		}
+
+		reward = new double[num_a][n];
+		histogram = new Signature[num_a][n];
+		support = new int[num_a][n][];
+		for (int a = 0; a < num_a; a++) {
+			for (int s = 0; s < n; s++) {
+				reward[a][s] = m.R(states[s], a);
+				Map<State,Double> tm_s = m.getHistogram(states[s], a);
+				int[] idx = new int[tm_s.size()];
+				double[] w = new double[idx.length];
+				TransitionView.copyRow(tm_s, idx, w, 0);
+				Feature[] f = new Feature[idx.length];
+				for (int k = 0; k < idx.length; k++) {
+					f[k] = points[idx[k]];
+				}
+				Signature sig = new Signature();
+				sig.setNumberOfFeatures(idx.length);
+				sig.setFeatures(f);
+				sig.setWeights(w);
+				histogram[a][s] = sig;
+				support[a][s] = idx;
+			}
+		}
+	}
+
+	/**
+	 * @param tolerance : the iterations stop when no pair changes by more than this in a full sweep;
+	 * pairs are skipped until they may have moved by more than tolerance * (1 - GAMMA) / 2
+	 * @return this solver
+	 */
+	public BisimulationMetric setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+		return this;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @param max_iterations : the number of sweeps after which the iterations stop anyway
+	 * @return this solver
+	 */
+	public BisimulationMetric setMaxIterations(int max_iterations) {
+		this.max_iterations = max_iterations;
+		return this;
+	}
+
+	public int getMaxIterations() {
+		return max_iterations;
+	}
+
+	/**
+	 * @param executor : runs the sweeps as parallel tasks; null to run them in the calling thread
+	 * @return this solver
+	 */
+	public BisimulationMetric setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Iterates the sweeps until the residual is within the tolerance, or the maximum number of iterations
+	 * @return the metric between the states, by index of the states
+	 */
+	public DistanceMatrix solve() {
+		int pairs = PackedDistanceMatrix.distances(n);
+		current = new PackedDistanceMatrix(n);
+		current.ensureRows(n);
+		next = new PackedDistanceMatrix(n);
+		next.ensureRows(n);
+		change = new double[pairs];
+		next_change = new double[pairs];
+		drift = new double[pairs];
+		skip_tolerance = tolerance * (1 - gamma) / 2;
+		residuals.clear();
+		computed_pairs.clear();
+
+		// the rows of each task, with about the same number of pairs
+		int num_tasks = (executor == null) ? 1 : Math.min(SWEEP_TASKS, Math.max(n - 1, 1));
+		int[] row_start = new int[num_tasks + 1];
+		for (int k = 1; k < num_tasks; k++) {
+			long target = (long) pairs * k / num_tasks;
+			int i = row_start[k - 1];
+			while(i < n && PackedDistanceMatrix.offset(i + 1) <= target) i++;
+			row_start[k] = i;
+		}
+		row_start[num_tasks] = n;
+
+		// whether the next sweep computes all pairs: the first one, and the one confirming convergence
+		boolean full = true;
+		for (int it = 0; it < max_iterations; it++) {
+			final boolean all = full;
+			double residual = 0;
+			long computed = 0;
+			if(executor == null) {
+				long[] count = new long[1];
+				residual = sweep(0, n, all, count);
+				computed = count[0];
+			}else {
+				List<Future<double[]>> tasks = new ArrayList<Future<double[]>>(num_tasks);
+				for (int k = 0; k < num_tasks; k++) {
+					final int r0 = row_start[k];
+					final int r1 = row_start[k + 1];
+					tasks.add(executor.submit(new Callable<double[]>() {
+						@Override
+						public double[] call() {
+							long[] count = new long[1];
+							double r = sweep(r0, r1, all, count);
+							return new double[] {r, count[0]};
+						}
+					}));
+				}
+				for (Future<double[]> t : tasks) {
+					double[] res = await(t);
+					residual = Math.max(residual, res[0]);
+					computed += (long) res[1];
+				}
+			}
+
+			PackedDistanceMatrix m = current;
+			current = next;
+			next = m;
+			double[] c = change;
+			change = next_change;
+			next_change = c;
+			residuals.add(residual);
+			computed_pairs.add(computed);
+			if(residual <= tolerance && all) break;
+			full = (residual <= tolerance);
+		}
+		next = null;
+		change = null;
+		next_change = null;
+		drift = null;
+		return current;
+	}
+
+	/**
+	 * @return the residual of each iteration of the last solve: a bound on the largest change of a pair
+	 * in a full sweep, exact for the full sweeps (the first and the last)
+	 */
+	public List<Double> getResiduals() {
+		return residuals;
+	}
+
+	/**
+	 * @return the number of pairs computed by each iteration of the last solve, the others being skipped
+	 */
+	public List<Long> getComputedPairs() {
+		return computed_pairs;
+	}
+
+	// computes the pairs of rows r0 .. r1-1 into next; returns the residual, count receives the pairs computed.
+	// A skipped pair is within gamma * drift of its value under the operator, which bounds its change
+	private double sweep(int r0, int r1, boolean all, long[] count) {
+		double residual = 0;
+		for (int i = Math.max(r0, 1); i < r1; i++) {
+			int row = PackedDistanceMatrix.offset(i);
+			for (int j = 0; j < i; j++) {
+				int k = row + j;
+				double old = current.get(i, j);
+				if(!all) {
+					drift[k] += dependencyChange(i, j);
+					if(gamma * drift[k] <= skip_tolerance) {
+						next.set(i, j, old);
+						next_change[k] = 0;
+						residual = Math.max(residual, gamma * drift[k]);
+						continue;
+					}
+				}
+				drift[k] = 0;
+				double d = distance(i, j);
+				next.set(i, j, d);
+				next_change[k] = Math.abs(d - old);
+				residual = Math.max(residual, next_change[k]);
+				count[0]++;
+			}
+		}
+		return residual;
+	}
+
+	// the largest change, in the last sweep, of the distances the EMDs of the pair (s, t) depend on
+	private double dependencyChange(int s, int t) {
+		double max = 0;
+		for (int a = 0; a < support.length; a++) {
+			int[] u = support[a][s];
+			int[] v = support[a][t];
+			for (int x = 0; x < u.length; x++) {
+				for (int y = 0; y < v.length; y++) {
+					if(u[x] == v[y]) continue;
+					double c = (u[x] > v[y]) ? change[PackedDistanceMatrix.offset(u[x]) + v[y]]
+							: change[PackedDistanceMatrix.offset(v[y]) + u[x]];
+					if(c > max) max = c;
+				}
+			}
+		}
+		return max;
+	}
+
+	// the distance between s and t under the operator, from the current metric
+	private double distance(int s, int t) {
+		double max = 0;
+		for (int a = 0; a < reward.length; a++) {
+			double d = Math.abs(reward[a][s] - reward[a][t]);
+			if(!sameHistogram(histogram[a][s], histogram[a][t])) {
+				d += gamma * JFastEMD.solver().distance(histogram[a][s], histogram[a][t], -1) / 100.0;
+			}
+			if(d > max) max = d;
+		}
+		return max;
+	}
+
+	private static boolean sameHistogram(Signature h1, Signature h2) {
+		return Arrays.equals(h1.getFeatures(), h2.getFeatures()) && Arrays.equals(h1.getWeights(), h2.getWeights());
+	}
+
+	// the result of a task, whose failure is rethrown unchecked
+	private static <T> T await(Future<T> task) {
+		try {
+			return task.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
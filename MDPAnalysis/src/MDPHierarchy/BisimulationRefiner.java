@@ -0,0 +1,450 @@
+package MDPHierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import MDPHierarchy.MDP.InvalidMDPException;
+import MDPHierarchy.MDP.State;
+
+/**
+ * Computes the coarsest bisimulation of an MDP that refines a given partition of its states, by
+ * partition refinement in the style of Paige-Tarjan, for weighted transitions (Derisavi, Hermanns
+ * and Sanders): a block C is used as a splitter by computing, for each action a, the mass w(s) that
+ * every predecessor s of C sends to C under a, and splitting the blocks of these states by w. When a
+ * block that was already used as a splitter is split, all its parts but the largest become splitters,
+ * the mass sent to the largest one following from the others. Each state is then part of a splitter
+ * O(log S) times, so the partition is computed in O((S*A + T) log S), T being the number of transitions,
+ * instead of the comparisons between states of repeated refinements of an AggMDP.
+ * The masses sent to a block are sums of transition weights, which depend on the order they are
+ * summed in for probabilities like those of PuddleMDP: masses within the tolerance are equal (relative
+ * to the masses when they are larger than 1), so that the integer weights of GridMDP are compared
+ * exactly. The mass sent to the largest part of a block then follows from the others within about
+ * twice the tolerance
+ */
+public class BisimulationRefiner {
+
+	/**
+	 * The states of the MDP being partitioned, by index
+	 */
+	private final State[] states;
+
+	/**
+	 * For each action, the predecessors of each state t, pred_idx[pred_ptr[t]] .. pred_idx[pred_ptr[t+1]-1],
+	 * with the weights of their transitions to t
+	 */
+	private final int[][] pred_ptr;
+	private final int[][] pred_idx;
+	private final double[][] pred_w;
+
+	/**
+	 * The partition: the states of block b are elems[block_first[b]] .. elems[block_end[b]-1],
+	 * pos is the position of each state in elems
+	 */
+	private int[] elems;
+	private int[] pos;
+	private int[] block_of;
+	private int[] block_first;
+	private int[] block_end;
+	private int num_blocks;
+
+	/**
+	 * The blocks still to be used as splitters
+	 */
+	private int[] splitters;
+	private int num_splitters;
+	private boolean[] is_splitter;
+
+	/**
+	 * Mass sent to the current splitter by each state, the states that send some (touched), the
+	 * number of touched states moved to the front of each block, and the blocks with touched states
+	 */
+	private double[] w;
+	private boolean[] is_touched;
+	private int[] touched;
+	private int[] marked;
+	private int[] touched_blocks;
+
+	/**
+	 * Number of block splits made by the last refinement
+	 */
+	private int splits;
+
+	/**
+	 * Largest difference between masses sent to a block that are considered equal
+	 */
+	private double tolerance = 1e-9;
+
+	/**
+	 * Reads the transitions of all states of m under all actions
+	 * @param m : the MDP whose states are partitioned
+	 */
+	public BisimulationRefiner(MDP m) throws InvalidMDPException {
+		int n = m.number_states();
+		states = new State[n];
+		for (State s : m.getStates()) {
+			states[s.idx()] = s;
+		}
+
+		int num_a = m.number_actions();
+		pred_ptr = new int[num_a][];
+		pred_idx = new int[num_a][];
+		pred_w = new double[num_a][];
+		int[] succ_ptr = new int[n + 1];
+		int[] succ_idx = new int[Math.max(n, 1)];
+		double[] succ_w = new double[succ_idx.length];
+		for (int a = 0; a < num_a; a++) {
+			// the successors of all states, then reversed
+			int nnz = 0;
+			for (int s = 0; s < n; s++) {
+				Map<State,Double> tm_s = m.getHistogram(states[s], a);
+				if(nnz + tm_s.size() > succ_idx.length) {
+					succ_idx = Arrays.copyOf(succ_idx, Math.max(2 * succ_idx.length, nnz + tm_s.size()));
+					succ_w = Arrays.copyOf(succ_w, succ_idx.length);
+				}
+				nnz += TransitionView.copyRow(tm_s, succ_idx, succ_w, nnz);
+				succ_ptr[s + 1] = nnz;
+			}
+
+			int[] ptr = new int[n + 1];
+			for (int k = 0; k < nnz; k++) {
+				ptr[succ_idx[k] + 1]++;
+			}
+			for (int t = 0; t < n; t++) {
+				ptr[t + 1] += ptr[t];
+			}
+			int[] next = Arrays.copyOf(ptr, n);
+			int[] idx = new int[nnz];
+			double[] weight = new double[nnz];
+			for (int s = 0; s < n; s++) {
+				for (int k = succ_ptr[s]; k < succ_ptr[s + 1]; k++) {
+					int t = succ_idx[k];
+					idx[next[t]] = s;
+					weight[next[t]++] = succ_w[k];
+				}
+			}
+			pred_ptr[a] = ptr;
+			pred_idx[a] = idx;
+			pred_w[a] = weight;
+		}
+	}
+
+	/**
+	 * Computes the coarsest bisimulation refining a partition of the states
+	 * @param initial : the block of each state, by index of the state, from 0 to the number of blocks - 1
+	 * @return the block of each state in the bisimulation, by index of the state. The blocks are
+	 * numbered in the order of the initial blocks containing them, then of their first state
+	 */
+	public int[] refine(int[] initial) {
+		int n = states.length;
+		allocate(n);
+
+		// the initial blocks, in order, with their states in order
+		int num_initial = 0;
+		for (int s = 0; s < n; s++) {
+			num_initial = Math.max(num_initial, initial[s] + 1);
+		}
+		int[] count = new int[num_initial + 1];
+		for (int s = 0; s < n; s++) {
+			count[initial[s] + 1]++;
+		}
+		for (int b = 0; b < num_initial; b++) {
+			count[b + 1] += count[b];
+		}
+		num_blocks = 0;
+		for (int b = 0; b < num_initial; b++) {
+			if(count[b] == count[b + 1]) continue;
+			block_first[num_blocks] = count[b];
+			block_end[num_blocks] = count[b + 1];
+			num_blocks++;
+		}
+		int[] next = Arrays.copyOf(count, num_initial);
+		int[] renumber = new int[num_initial];
+		for (int b = 0, k = 0; b < num_initial; b++) {
+			renumber[b] = (count[b] == count[b + 1]) ? -1 : k++;
+		}
+		for (int s = 0; s < n; s++) {
+			int p = next[initial[s]]++;
+			elems[p] = s;
+			pos[s] = p;
+			block_of[s] = renumber[initial[s]];
+		}
+
+		// all blocks are splitters at first
+		splits = 0;
+		num_splitters = 0;
+		for (int b = num_blocks - 1; b >= 0; b--) {
+			pushSplitter(b);
+		}
+
+		int[] splitter = new int[n];
+		while(num_splitters > 0) {
+			int c = splitters[--num_splitters];
+			is_splitter[c] = false;
+			// the states of c, which splitting c itself would reorder
+			int size = block_end[c] - block_first[c];
+			System.arraycopy(elems, block_first[c], splitter, 0, size);
+			for (int a = 0; a < pred_ptr.length; a++) {
+				split(splitter, size, a);
+			}
+		}
+
+		return canonicalBlocks(initial);
+	}
+
+	/**
+	 * @param tolerance : masses sent to a block that differ by at most this are equal, relative to 
+	 * the masses when they are larger than 1
+	 * @return this refiner
+	 */
+	public BisimulationRefiner setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+		return this;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return the number of block splits made by the last refinement
+	 */
+	public int getSplits() {
+		return splits;
+	}
+
+	/**
+	 * Refines the clusters of agg_m into the coarsest bisimulation of its underlying MDP: the result is
+	 * the fixed point of repeatedly refining agg_m with new AggMDP(agg_m), as a single aggregate MDP
+	 * inserted between agg_m and its underlying MDP, whose clusters are numbered as a refinement of
+	 * agg_m numbers them (in the order of their parent clusters, then of their first state)
+	 * @param agg_m : the Aggregate MDP that becomes declustered, which must aggregate the ground MDP.
+	 * Note that this input Aggregate MDP will get modified
+	 * @param opts : settings used when computing the distances between the clusters
+	 * @return the new aggregate MDP
+	 */
+	public static AggMDP refine(AggMDP agg_m, AggMDP.Options opts) throws InvalidMDPException {
+		MDP ground = agg_m.getLargerMDP();
+		if(ground instanceof AggMDP) throw agg_m.new InvalidMDPException();
+
+		int[] initial = new int[ground.number_states()];
+		for (State s : ground.getStates()) {
+			AggMDP.Cluster c = agg_m.clusterOfGroundState(s.idx());
+			if(c == null) throw agg_m.new MissingAggParentLinkException();
+			initial[s.idx()] = c.idx();
+		}
+		BisimulationRefiner refiner = new BisimulationRefiner(ground);
+		int[] block = refiner.refine(initial);
+
+		// the states of each block, in the order of the states of the ground MDP
+		List<List<State>> partition = new ArrayList<List<State>>();
+		for (State s : ground.getStates()) {
+			int b = block[s.idx()];
+			while(partition.size() <= b) partition.add(new ArrayList<State>());
+			partition.get(b).add(s);
+		}
+		return new AggMDP(agg_m, partition, opts);
+	}
+
+	private void allocate(int n) {
+		elems = new int[n];
+		pos = new int[n];
+		block_of = new int[n];
+		block_first = new int[n];
+		block_end = new int[n];
+		splitters = new int[n];
+		is_splitter = new boolean[n];
+		w = new double[n];
+		is_touched = new boolean[n];
+		touched = new int[n];
+		marked = new int[n];
+		touched_blocks = new int[n];
+	}
+
+	private void pushSplitter(int b) {
+		is_splitter[b] = true;
+		splitters[num_splitters++] = b;
+	}
+
+	// splits the blocks by the mass their states send to the states splitter[0 .. size-1] under action a
+	private void split(int[] splitter, int size, int a) {
+		int[] ptr = pred_ptr[a];
+		int[] idx = pred_idx[a];
+		double[] weight = pred_w[a];
+
+		// the mass sent by each predecessor, which are moved to the front of their blocks
+		int num_touched = 0;
+		int num_blocks_touched = 0;
+		for (int k = 0; k < size; k++) {
+			int t = splitter[k];
+			for (int p = ptr[t]; p < ptr[t + 1]; p++) {
+				int s = idx[p];
+				if(!is_touched[s]) {
+					is_touched[s] = true;
+					touched[num_touched++] = s;
+					int b = block_of[s];
+					if(marked[b] == 0) touched_blocks[num_blocks_touched++] = b;
+					swap(s, block_first[b] + marked[b]);
+					marked[b]++;
+				}
+				w[s] += weight[p];
+			}
+		}
+
+		for (int k = 0; k < num_blocks_touched; k++) {
+			int b = touched_blocks[k];
+			splitBlock(b);
+			marked[b] = 0;
+		}
+		for (int k = 0; k < num_touched; k++) {
+			w[touched[k]] = 0;
+			is_touched[touched[k]] = false;
+		}
+	}
+
+	// splits block b, whose marked[b] first states are touched, by the mass w its states send
+	private void splitBlock(int b) {
+		int first = block_first[b];
+		int end = block_end[b];
+		int m = first + marked[b];
+		sortByMass(first, m);
+		if(m == end && sameMass(w[elems[first]], w[elems[end - 1]])) return;
+
+		// the parts: the touched states with the same mass as the first of the part, by decreasing 
+		// mass, then the states that send none, which b keeps with the touched states sending about
+		// none; if there are none, b keeps the last part
+		int keep_first = m;
+		if(m < end) {
+			while(keep_first > first && sameMass(w[elems[keep_first - 1]], 0)) keep_first--;
+		}else {
+			keep_first = first;
+			while(!sameMass(w[elems[keep_first]], w[elems[end - 1]])) keep_first++;
+		}
+		int new_first = num_blocks;
+		int k = first;
+		while(k < keep_first) {
+			int k2 = k + 1;
+			while(k2 < keep_first && sameMass(w[elems[k2]], w[elems[k]])) k2++;
+			int nb = num_blocks++;
+			block_first[nb] = k;
+			block_end[nb] = k2;
+			for (int j = k; j < k2; j++) {
+				block_of[elems[j]] = nb;
+			}
+			splits++;
+			k = k2;
+		}
+		block_first[b] = keep_first;
+
+		// the parts of a block still to be used as a splitter are all splitters; for a block 
+		// already used, all but the largest
+		int largest = -1;
+		if(!is_splitter[b]) {
+			largest = b;
+			for (int nb = new_first; nb < num_blocks; nb++) {
+				if(size(nb) > size(largest)) largest = nb;
+			}
+			if(largest != b) pushSplitter(b);
+		}
+		for (int nb = new_first; nb < num_blocks; nb++) {
+			if(nb != largest) pushSplitter(nb);
+		}
+	}
+
+	// whether two masses sent to a block are equal, within the tolerance
+	private boolean sameMass(double x, double y) {
+		return Math.abs(x - y) <= tolerance * Math.max(1, Math.max(Math.abs(x), Math.abs(y)));
+	}
+
+	private int size(int b) {
+		return block_end[b] - block_first[b];
+	}
+
+	// swaps the state s with the state at position p of elems
+	private void swap(int s, int p) {
+		int t = elems[p];
+		int ps = pos[s];
+		elems[p] = s;
+		pos[s] = p;
+		elems[ps] = t;
+		pos[t] = ps;
+	}
+
+	// sorts elems[from .. to-1] by decreasing mass w of the states
+	private void sortByMass(int from, int to) {
+		if(to - from > 1) quickSort(from, to - 1);
+		for (int k = from; k < to; k++) {
+			pos[elems[k]] = k;
+		}
+	}
+
+	private void quickSort(int lo, int hi) {
+		while(hi - lo > 16) {
+			double pivot = w[elems[(lo + hi) >>> 1]];
+			int i = lo;
+			int j = hi;
+			while(i <= j) {
+				while(w[elems[i]] > pivot) i++;
+				while(w[elems[j]] < pivot) j--;
+				if(i <= j) {
+					int t = elems[i];
+					elems[i++] = elems[j];
+					elems[j--] = t;
+				}
+			}
+			// recurse on the smaller half
+			if(j - lo < hi - i) {
+				quickSort(lo, j);
+				lo = i;
+			}else {
+				quickSort(i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			int t = elems[i];
+			int j = i - 1;
+			while(j >= lo && w[elems[j]] < w[t]) {
+				elems[j + 1] = elems[j];
+				j--;
+			}
+			elems[j + 1] = t;
+		}
+	}
+
+	// numbers the blocks in the order of the initial blocks containing them, then of their first state
+	private int[] canonicalBlocks(int[] initial) {
+		int n = states.length;
+		int[] order = new int[n];
+		for (int s = 0; s < n; s++) {
+			order[s] = s;
+		}
+		// states in the order of their initial block, stable: by counting
+		int num_initial = 0;
+		for (int s = 0; s < n; s++) {
+			num_initial = Math.max(num_initial, initial[s] + 1);
+		}
+		int[] count = new int[num_initial + 1];
+		for (int s = 0; s < n; s++) {
+			count[initial[s] + 1]++;
+		}
+		for (int b = 0; b < num_initial; b++) {
+			count[b + 1] += count[b];
+		}
+		for (int s = 0; s < n; s++) {
+			order[count[initial[s]]++] = s;
+		}
+
+		int[] number = new int[num_blocks];
+		Arrays.fill(number, -1);
+		int[] toRet = new int[n];
+		int k = 0;
+		for (int p = 0; p < n; p++) {
+			int s = order[p];
+			if(number[block_of[s]] < 0) number[block_of[s]] = k++;
+			toRet[s] = number[block_of[s]];
+		}
+		return toRet;
+	}
+}
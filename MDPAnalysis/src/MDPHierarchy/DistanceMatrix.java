@@ -0,0 +1,39 @@
+package MDPHierarchy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The metric D between the states of an MDP: a symmetric matrix with a zero diagonal, of which
+ * only the lower triangle is stored. Rows are added as the states of the MDP get created
+ */
+public interface DistanceMatrix {
+
+	/**
+	 * @return the number of rows (i.e. states) of the matrix
+	 */
+	public int size();
+
+	/**
+	 * Makes the matrix at least n rows large, the new distances being 0
+	 * @param n : number of rows
+	 */
+	public void ensureRows(int n);
+
+	/**
+	 * @return the distance between states i and j, 0 if i == j
+	 */
+	public double get(int i, int j);
+
+	/**
+	 * Sets the distance between states i and j (i != j), both being rows of the matrix
+	 */
+	public void set(int i, int j, double dist);
+
+	/**
+	 * Saves the matrix in binary form, in the format of MappedDistanceMatrix, so that it can be 
+	 * reopened with MappedDistanceMatrix.open
+	 * @param f : the output file
+	 */
+	public void save(File f) throws IOException;
+}
@@ -0,0 +1,123 @@
+package MDPHierarchy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import MDPHierarchy.MDP.Histogram;
+import MDPHierarchy.MDP.InvalidMDPException;
+import MDPHierarchy.MDP.State;
+
+/**
+ * A bounded cache of the histograms of states over the clusters of an aggregate MDP, keyed by
+ * (state, action, aggregate MDP). When full, the least recently used histogram is evicted.
+ * The key also holds the structure version of the aggregate MDP, which changes when a layer gets
+ * inserted under it, so the histograms cached before are not used anymore and age out of the cache
+ */
+public class HistogramCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 16;
+
+	private static class Key {
+		private final State s;
+		private final int a;
+		private final AggMDP target;
+		private final int version;
+
+		Key(State s, int a, AggMDP target) {
+			this.s = s;
+			this.a = a;
+			this.target = target;
+			this.version = target.getStructureVersion();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return s == k.s && a == k.a && target == k.target && version == k.version;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = System.identityHashCode(s);
+			h = 31 * h + a;
+			h = 31 * h + System.identityHashCode(target);
+			return 31 * h + version;
+		}
+	}
+
+	private final int max_entries;
+	private final LinkedHashMap<Key, Histogram> histograms;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param max_entries : the number of histograms kept at most
+	 */
+	public HistogramCache(final int max_entries) {
+		this.max_entries = max_entries;
+		// in access order, so that the eldest entry is the least recently used
+		this.histograms = new LinkedHashMap<Key, Histogram>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Histogram> eldest) {
+				return size() > max_entries;
+			}
+		};
+	}
+
+	public HistogramCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Returns s.histogram(a, target), computing it only if it is not in the cache
+	 * @param s : start state
+	 * @param a : action taken
+	 * @param target : the aggregate MDP over whose clusters the histogram is built
+	 * @return the histogram, which is shared and must not be modified
+	 */
+	public Histogram histogram(State s, int a, AggMDP target) throws InvalidMDPException {
+		Key k = new Key(s, a, target);
+		synchronized (this) {
+			Histogram h = histograms.get(k);
+			if(h != null) {
+				hits++;
+				return h;
+			}
+			misses++;
+		}
+		// computed outside the lock; two threads may compute the same histogram
+		Histogram h = s.histogram(a, target);
+		synchronized (this) {
+			histograms.put(k, h);
+		}
+		return h;
+	}
+
+	public int getMaxEntries() {
+		return max_entries;
+	}
+
+	public synchronized int size() {
+		return histograms.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Empties the cache and resets its counters
+	 */
+	public synchronized void clear() {
+		histograms.clear();
+		hits = 0;
+		misses = 0;
+	}
+}
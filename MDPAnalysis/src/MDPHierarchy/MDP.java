@@ -4,6 +4,7 @@ import jFastEMD.*;
 
 import java.io.PrintWriter;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
@@ -65,6 +66,8 @@ public abstract class MDP {
 		}
 		
 		public AggMDP.Cluster getMemeber(AggMDP magg) {
+			// a state of the ground MDP is looked up directly
+			if(!(mdp instanceof AggMDP)) return magg.clusterOfGroundState(index);
 			Cluster cl = parent;
 			while (cl != null && !cl.sameMdp(magg)) cl = cl.parent;
 			return cl;
@@ -87,9 +90,7 @@ public abstract class MDP {
 		public double groundDist(Feature f2) {
 			State s2 = (State) f2;
 			// note the matrix D is a lower triangle matrix
-			if(index == s2.index) return 0;
-			if(index > s2.index) return mdp.D[index][s2.index];			
-			else return mdp.D[s2.index][index];
+			return mdp.D.get(index, s2.index);
 		}
 
 		@Override
@@ -138,58 +139,183 @@ public abstract class MDP {
 
 			State s = baseState();
 
+			TreeMap<State, Double> tm_s_mdp = new TreeMap<State, Double>();
+
+			ProjectionTable t = s.projection(a, m);
+			if(t != null) {
+				for (int k = t.rowPtr[s.index]; k < t.rowPtr[s.index + 1]; k++) {
+					tm_s_mdp.put(((AggMDP) m).getCluster(t.colIdx[k]), t.mass[k]);
+				}
+				return tm_s_mdp;
+			}
+
 			// transition map out of input state s to the input (possibly aggregate MDP)
 			Map<State,Double> tm_s_this = s.mdp.getHistogram(s, a);
 
-			TreeMap<State, Double> tm_s_mdp = new TreeMap<State, Double>();
-
-			for (State sn_this : tm_s_this.keySet()) {
+			for (Map.Entry<State,Double> e : tm_s_this.entrySet()) {
 				//get the cluster to which it pertains
-				State sn_mdp = sn_this;
-				while(sn_mdp != null && !sn_mdp.sameMdp(m)) sn_mdp = sn_mdp.parent();			
-				if(sn_mdp == null) 
-				{				
-					throw new MissingAggParentLinkException();
-				}
+				State sn_mdp = e.getKey().memberOf(m);
 
 				// index of the next cluster in the parent AggMDP
-				if(tm_s_mdp.containsKey(sn_mdp)) {
-					tm_s_mdp.put(sn_mdp, tm_s_this.get(sn_this) + tm_s_mdp.get(sn_mdp));
-				}else tm_s_mdp.put(sn_mdp, tm_s_this.get(sn_this));
+				Double w = tm_s_mdp.get(sn_mdp);
+				if(w != null) {
+					tm_s_mdp.put(sn_mdp, e.getValue() + w);
+				}else tm_s_mdp.put(sn_mdp, e.getValue());
 			}
 
 			return tm_s_mdp;	
 		}
 
+		/**
+		 * Same as getHistogram(a, m), built directly as a Histogram of m in one pass over the 
+		 * transitions of the base state
+		 * @param a : action taken
+		 * @param m : MDP used to determine the sigma algebra for the histogram
+		 * @return the histogram of the transition map under the input s-a pair
+		 */
+		public Histogram histogram(int a, MDP m) throws InvalidMDPException {
+
+			State s = baseState();
+
+			ProjectionTable t = s.projection(a, m);
+			if(t != null) {
+				// the histogram is a row of the table
+				Histogram h = m.new Histogram(t.rowPtr[s.index + 1] - t.rowPtr[s.index]);
+				for (int k = t.rowPtr[s.index]; k < t.rowPtr[s.index + 1]; k++) {
+					h.add(((AggMDP) m).getCluster(t.colIdx[k]), t.mass[k]);
+				}
+				h.setSignature();
+				return h;
+			}
+
+			// transition map out of input state s to the input (possibly aggregate MDP)
+			Map<State,Double> tm_s_this = s.mdp.getHistogram(s, a);
+
+			Histogram h = m.new Histogram(tm_s_this.size());
+			if(tm_s_this instanceof TransitionView) {
+				// read the weights without boxing them
+				TransitionView v = (TransitionView) tm_s_this;
+				for (int k = 0; k < v.size(); k++) {
+					h.add(v.state(k).memberOf(m), v.weight(k));
+				}
+			}else {
+				for (Map.Entry<State,Double> e : tm_s_this.entrySet()) {
+					h.add(e.getKey().memberOf(m), e.getValue());
+				}
+			}
+			h.setSignature();
+			return h;
+		}
+
+		// the transitions of this ground state projected on the clusters of m, or null if this is not 
+		// a ground state or m has no projection tables
+		private ProjectionTable projection(int a, MDP m) {
+			if(!(m instanceof AggMDP) || mdp instanceof AggMDP) return null;
+			return ((AggMDP) m).projection(a);
+		}
+
+		// the state of m to which this state pertains, this state or one of its ancestors
+		private State memberOf(MDP m) throws MissingAggParentLinkException {
+			if(sameMdp(m)) return this;
+			if(m instanceof AggMDP && !(mdp instanceof AggMDP)) {
+				// a state of the ground MDP is looked up directly
+				State sn_mdp = ((AggMDP) m).clusterOfGroundState(index);
+				if(sn_mdp == null) throw new MissingAggParentLinkException();
+				return sn_mdp;
+			}
+			State sn_mdp = this;
+			while(sn_mdp != null && !sn_mdp.sameMdp(m)) sn_mdp = sn_mdp.parent();			
+			if(sn_mdp == null) throw new MissingAggParentLinkException();
+			return sn_mdp;
+		}
+
 
 	}
 
 	/**
 	 * A class that implements a histogram (to be used in the  
+	 * Stored as parallel arrays of the states with positive mass, sorted by index, and of their 
+	 * masses; these arrays are the features and weights of the signature given to JFastEMD
 	 * @author gcoman
 	 */	
 	public class Histogram extends Signature{
 
-		private int total = 0;		
-		private TreeMap<State, Double> heapStorage;
+		private double total = 0;		
+		private int n = 0;
+		private int[] stateIdx;
+		private State[] states;
+		private double[] mass;
 
 
 		public Histogram(Map<State,Double> raw_hist) {
-			heapStorage = new TreeMap<MDP.State, Double>();
-			for (State j : raw_hist.keySet()) {
-				double d = raw_hist.get(j);
-				heapStorage.put(j, d);
-				total += d;			
+			this(raw_hist.size());
+			for (Map.Entry<State,Double> e : raw_hist.entrySet()) {
+				add(e.getKey(), e.getValue());
 			}			
 			setSignature();
 		}
 
+		// an empty histogram, filled by add then setSignature
+		private Histogram(int capacity) {
+			stateIdx = new int[capacity];
+			states = new State[capacity];
+			mass = new double[capacity];
+		}
+
+		// adds mass d to state s, keeping the states sorted by index
+		private void add(State s, double d) {
+			int k = Arrays.binarySearch(stateIdx, 0, n, s.index);
+			if(k >= 0) {
+				mass[k] += d;
+				return;
+			}
+			k = -k - 1;
+			if(n == stateIdx.length) {
+				stateIdx = Arrays.copyOf(stateIdx, 2 * n + 1);
+				states = Arrays.copyOf(states, 2 * n + 1);
+				mass = Arrays.copyOf(mass, 2 * n + 1);
+			}
+			System.arraycopy(stateIdx, k, stateIdx, k + 1, n - k);
+			System.arraycopy(states, k, states, k + 1, n - k);
+			System.arraycopy(mass, k, mass, k + 1, n - k);
+			stateIdx[k] = s.index;
+			states[k] = s;
+			mass[k] = d;
+			n++;
+		}
+
+		/**
+		 * @return the number of states with positive mass
+		 */
+		public int size() {
+			return n;
+		}
+
+		/**
+		 * @return the index of the k-th state with positive mass, in order of index
+		 */
+		public int stateIdx(int k) {
+			return stateIdx[k];
+		}
+
+		/**
+		 * @return the mass of the k-th state with positive mass, in order of index
+		 */
+		public double mass(int k) {
+			return mass[k];
+		}
+
+		public double getTotal() {
+			return total;
+		}
+
 		public int compareTo(Histogram h2) {
 			if(Math.abs(total - h2.total)  > 0.00001) return -1; //TODO magic number
-			if(heapStorage.size() != h2.heapStorage.size()) { return 1;}
-			for (State s : h2.heapStorage.keySet()) {
-				if(!heapStorage.containsKey(s))	{return 1; }				
-				if(heapStorage.get(s) - h2.heapStorage.get(s) > 0.000001) {return 1; } //TODO magic number
+			if(n != h2.n) { return 1;}
+			// both are sorted by index
+			for (int k = 0; k < n; k++) {
+				if(stateIdx[k] != h2.stateIdx[k]) {return 1; }				
+				if(mass[k] - h2.mass[k] > 0.000001) {return 1; } //TODO magic number
 			}
 
 			return 0;
@@ -197,29 +323,123 @@ public abstract class MDP {
 
 		// compare two histograms using JFastEMD
 		public double compareToJFastEMD(Histogram h2){
+			return compareToJFastEMD(h2, -1);
+		}
+
+		/**
+		 * Compare two histograms using JFastEMD with a thresholded ground distance min(d, threshold)
+		 * @param h2 : the other histogram
+		 * @param threshold : the threshold T on the ground distance; a negative value means no threshold
+		 * @return the EMD between the two histograms, or -1 if they do not have the same total mass
+		 */
+		public double compareToJFastEMD(Histogram h2, double threshold){
+			if(Math.abs(total - h2.total)  > 0.00001) return -1; //TODO magic number
+			return JFastEMD.distance(this, h2, -1, threshold);
+		}
+
+		/**
+		 * Same as compareToJFastEMD(h2, threshold), when this histogram gets compared against many others
+		 * @param h2 : the other histogram
+		 * @param query : this histogram, as prepared by EmdSolver.prepare
+		 * @param threshold : the threshold T on the ground distance; a negative value means no threshold
+		 * @return the EMD between the two histograms, or -1 if they do not have the same total mass
+		 */
+		public double compareToJFastEMD(Histogram h2, EmdSolver.Query query, double threshold){
+			if(Math.abs(total - h2.total)  > 0.00001) return -1; //TODO magic number
+			return JFastEMD.solver().distance(query, h2, -1, threshold);
+		}
+
+		/**
+		 * Same as compareToJFastEMD(h2, query, threshold), warm started from the previous comparison 
+		 * saved in warm (see jFastEMD.WarmStart), which then receives this one
+		 * @return the EMD between the two histograms, or -1 if they do not have the same total mass
+		 */
+		public double compareToJFastEMD(Histogram h2, EmdSolver.Query query, double threshold, WarmStart warm){
 			if(Math.abs(total - h2.total)  > 0.00001) return -1; //TODO magic number
-			return JFastEMD.distance(this, h2, -1);	    
+			return JFastEMD.solver().distance(query, h2, -1, threshold, warm);
+		}
+
+		/**
+		 * Compare two histograms using Sinkhorn iterations, an approximation of compareToJFastEMD 
+		 * which is faster for histograms with large supports
+		 * @param h2 : the other histogram
+		 * @param sinkhorn : the solver, which sets the regularization and the tolerance
+		 * @param threshold : the threshold T on the ground distance; a negative value means no threshold
+		 * @return the approximate EMD with its error bound, or a distance of -1 if the histograms 
+		 * do not have the same total mass
+		 */
+		public Sinkhorn.Result compareToSinkhorn(Histogram h2, Sinkhorn sinkhorn, double threshold){
+			if(Math.abs(total - h2.total)  > 0.00001) return new Sinkhorn.Result(-1, 0, 0, 0); //TODO magic number
+			return sinkhorn.distance(this, h2, threshold);
 		}
 
-		// get the signature of a histogram
+		/**
+		 * Upper bound on compareToJFastEMD(h2, threshold) that does not solve the transportation problem:
+		 * the mass by which the histograms differ (their total variation) is moved between the farthest
+		 * pair of states it could be moved between. The bound allows for the rounding done by JFastEMD,
+		 * except for equal histograms, where it is exactly 0
+		 * @param h2 : the other histogram
+		 * @param threshold : the threshold T on the ground distance; a negative value means no threshold
+		 * @return the bound, or +infinity if the histograms do not have the same total mass
+		 */
+		public double emdUpperBound(Histogram h2, double threshold) {
+			if(Math.abs(total - h2.total)  > 0.00001) return Double.POSITIVE_INFINITY; //TODO magic number
+			// excess of each state of one histogram over the other, by merging the sorted states
+			double[] diff1 = new double[n];
+			double[] diff2 = new double[h2.n];
+			double moved1 = 0;
+			double moved2 = 0;
+			double sum1 = 0;
+			double sum2 = 0;
+			int k2 = 0;
+			for (int k1 = 0; k1 < n; k1++) {
+				while(k2 < h2.n && h2.stateIdx[k2] < stateIdx[k1]) {
+					diff2[k2] = h2.mass[k2];
+					k2++;
+				}
+				if(k2 < h2.n && h2.stateIdx[k2] == stateIdx[k1]) {
+					diff1[k1] = mass[k1] - h2.mass[k2];
+					diff2[k2] = -diff1[k1];
+					k2++;
+				}else diff1[k1] = mass[k1];
+			}
+			for (; k2 < h2.n; k2++) diff2[k2] = h2.mass[k2];
+			for (int k1 = 0; k1 < n; k1++) {
+				if(diff1[k1] > 0) moved1 += diff1[k1];
+				sum1 += mass[k1];
+			}
+			for (k2 = 0; k2 < h2.n; k2++) {
+				if(diff2[k2] > 0) moved2 += diff2[k2];
+				sum2 += h2.mass[k2];
+			}
+			double maxMoved = 0;
+			double maxAll = 0;
+			for (int k1 = 0; k1 < n; k1++) {
+				for (k2 = 0; k2 < h2.n; k2++) {
+					double d = states[k1].groundDist(h2.states[k2]);
+					if(threshold >= 0 && d > threshold) d = threshold;
+					if(d > maxAll) maxAll = d;
+					// only mass from a state with a surplus to a state with a deficit needs to move
+					if(diff1[k1] > 0 && diff2[k2] > 0 && d > maxMoved) maxMoved = d;
+				}
+			}
+			if(moved1 == 0 && moved2 == 0) return 0;
+			// JFastEMD rounds weights and ground distances to 1e-6 of their largest values
+			double rounding = Math.max(sum1, sum2) * maxAll * (n + h2.n + 1) * 1e-6;
+			// extra mass of the heavier histogram is paid at the largest ground distance
+			return Math.max(moved1, moved2) * maxMoved + Math.abs(sum1 - sum2) * maxAll + rounding;
+		}
+
+		// get the signature of a histogram: its arrays, without copying them
 		private void setSignature()
 		{
-			// compute features and weights
-			int n = this.heapStorage.size();
-			State[] features = new State[n];
-			double[] weights = new double[n];
-
-			int i = 0;
-			for(Map.Entry<State,Double> entry : heapStorage.entrySet()) {
-				State key = entry.getKey();
-				Double value = entry.getValue();
-				features[i] = key;
-				weights[i] = value;
-				i++;
-			}	        	      
+			total = 0;
+			for (int k = 0; k < n; k++) {
+				total += mass[k];
+			}
 			setNumberOfFeatures(n);
-			setFeatures(features);
-			setWeights(weights);
+			setFeatures(states);
+			setWeights(mass);
 		}
 	}
 
@@ -245,7 +465,7 @@ public abstract class MDP {
 
 	// the distance matrix between two states
 	// indexed by indices of two states
-	protected double[][] D;
+	protected DistanceMatrix D;
 
 	final double GAMMA = 0.9;
 
@@ -313,16 +533,23 @@ public abstract class MDP {
 		}
 	}
 
+	/**
+	 * @return the metric D of the current MDP
+	 */
+	public DistanceMatrix getDistances() {
+		return D;
+	}
+
 	/**
 	 * Prints the metric D of the current MDP
 	 * @param w : a PrintWriter where the output should be directed
 	 */
 	public void printD(PrintWriter w) {
-		for (int i=1 ; i < D.length ; i++) {			
-			for (int j = 0; j < D[i].length; j++) {
-				DecimalFormat df = new DecimalFormat("###.##");
-				String d = df.format(D[i][j]);
-				w.print(d + ((j < D[i].length -1) ? "," : ""));
+		DecimalFormat df = new DecimalFormat("###.##");
+		for (int i=1 ; i < D.size() ; i++) {			
+			for (int j = 0; j < i; j++) {
+				String d = df.format(D.get(i, j));
+				w.print(d + ((j < i -1) ? "," : ""));
 			}w.println();
 		}
 	}
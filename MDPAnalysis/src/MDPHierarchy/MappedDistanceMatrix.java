@@ -0,0 +1,207 @@
+package MDPHierarchy;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The metric D stored as a packed lower triangle in a memory-mapped file, for levels whose metric
+ * does not fit in the heap. The file starts with a header (magic number, version, number of rows),
+ * followed by the distances in the order of PackedDistanceMatrix, as big-endian doubles. It is mapped
+ * in chunks, since a single mapping can not exceed 2GB, and is left on disk so that the metric
+ * can be reopened later with open()
+ */
+public class MappedDistanceMatrix implements DistanceMatrix {
+
+	static final long MAGIC = 0x524c4c61622d4400L; // "RLLab-D"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 32;
+	// position of the number of rows in the header
+	private static final int ROWS_POSITION = 16;
+
+	// chunks of 128MB: a multiple of 8, so that no distance spans two chunks
+	private static final int CHUNK_SHIFT = 27;
+	private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+	private static final long MIN_MAPPING_BYTES = 1L << 16;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final boolean read_only;
+	private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+	private int rows;
+
+	/**
+	 * Creates an empty matrix in file f, overwriting it
+	 * @param f : the file backing the matrix
+	 */
+	public MappedDistanceMatrix(File f) throws IOException {
+		this(f, new RandomAccessFile(f, "rw"), false, 0);
+		boolean created = false;
+		try {
+			raf.setLength(0);
+			mapUpTo(HEADER_BYTES);
+			chunks[0].putLong(0, MAGIC);
+			chunks[0].putInt(8, VERSION);
+			chunks[0].putLong(ROWS_POSITION, 0);
+			created = true;
+		}finally {
+			// the caller gets no matrix to close
+			if(!created) raf.close();
+		}
+	}
+
+	private MappedDistanceMatrix(File f, RandomAccessFile raf, boolean read_only, int rows) {
+		this.file = f;
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.read_only = read_only;
+		this.rows = rows;
+	}
+
+	/**
+	 * Reopens a matrix saved by a MappedDistanceMatrix or by DistanceMatrix.save
+	 * @param f : the file of the matrix
+	 * @param read_only : whether the matrix is only read; otherwise rows can be added and distances changed
+	 * @return the matrix
+	 */
+	public static MappedDistanceMatrix open(File f, boolean read_only) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, read_only ? "r" : "rw");
+		boolean opened = false;
+		try {
+			if(raf.length() < HEADER_BYTES || raf.readLong() != MAGIC || raf.readInt() != VERSION) {
+				throw new IOException(f + " is not a distance matrix");
+			}
+			raf.seek(ROWS_POSITION);
+			long n = raf.readLong();
+			if(n < 0 || n > Integer.MAX_VALUE || raf.length() < byteLength((int) n)) {
+				throw new IOException(f + " is truncated");
+			}
+			MappedDistanceMatrix m = new MappedDistanceMatrix(f, raf, read_only, (int) n);
+			m.mapUpTo(byteLength(m.rows));
+			opened = true;
+			return m;
+		}finally {
+			if(!opened) raf.close();
+		}
+	}
+
+	/**
+	 * @return the file backing this matrix
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	// size of the file holding n rows
+	private static long byteLength(int n) {
+		return HEADER_BYTES + 8L * ((long) n * (n - 1) / 2);
+	}
+
+	// maps the chunks covering the first bytes of the file. Writable chunks are mapped with room 
+	// to grow, which extends the file, and are remapped larger when they get full
+	private void mapUpTo(long bytes) throws IOException {
+		int n = (int) ((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT);
+		if(n > chunks.length) chunks = Arrays.copyOf(chunks, n);
+		for (int k = 0; k < n; k++) {
+			long start = (long) k << CHUNK_SHIFT;
+			long needed = Math.min(CHUNK_BYTES, bytes - start);
+			if(chunks[k] != null && chunks[k].capacity() >= needed) continue;
+			if(read_only) {
+				chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, start, needed);
+			}else {
+				long size = (chunks[k] == null) ? needed : 2L * chunks[k].capacity();
+				size = Math.min(CHUNK_BYTES, Math.max(size, Math.max(needed, MIN_MAPPING_BYTES)));
+				chunks[k] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			}
+		}
+	}
+
+	// position in the file of the distance between states i > j
+	private static long position(int i, int j) {
+		return HEADER_BYTES + 8L * ((long) i * (i - 1) / 2 + j);
+	}
+
+	@Override
+	public int size() {
+		return rows;
+	}
+
+	@Override
+	public void ensureRows(int n) {
+		if(n <= rows) return;
+		if(read_only) throw new UnsupportedOperationException("read-only distance matrix");
+		try {
+			mapUpTo(byteLength(n));
+		}catch (IOException e) {
+			throw new IllegalStateException("could not grow " + file, e);
+		}
+		rows = n;
+		chunks[0].putLong(ROWS_POSITION, rows);
+	}
+
+	@Override
+	public double get(int i, int j) {
+		if(i == j) return 0;
+		long pos = (i > j) ? position(i, j) : position(j, i);
+		return chunks[(int) (pos >>> CHUNK_SHIFT)].getDouble((int) (pos & (CHUNK_BYTES - 1)));
+	}
+
+	@Override
+	public void set(int i, int j, double dist) {
+		long pos = (i > j) ? position(i, j) : position(j, i);
+		chunks[(int) (pos >>> CHUNK_SHIFT)].putDouble((int) (pos & (CHUNK_BYTES - 1)), dist);
+	}
+
+	/**
+	 * Writes the changes to the file
+	 */
+	public void flush() {
+		if(read_only) return;
+		for (MappedByteBuffer c : chunks) {
+			c.force();
+		}
+	}
+
+	/**
+	 * Copies the matrix to f, from the file to f without going through the heap
+	 */
+	@Override
+	public void save(File f) throws IOException {
+		flush();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			FileChannel out_channel = out.getChannel();
+			long length = byteLength(rows);
+			long done = 0;
+			while (done < length) {
+				done += channel.transferTo(done, length - done, out_channel);
+			}
+		}finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Flushes the matrix and closes its file; the matrix can not be used anymore
+	 */
+	public void close() throws IOException {
+		flush();
+		chunks = new MappedByteBuffer[0];
+		raf.close();
+	}
+
+	// the header of a matrix with n rows
+	static void writeHeader(DataOutput out, int n) throws IOException {
+		out.writeLong(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(0);
+		out.writeLong(n);
+		out.writeLong(0);
+	}
+}
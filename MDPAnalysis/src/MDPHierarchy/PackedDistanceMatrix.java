@@ -0,0 +1,122 @@
+package MDPHierarchy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The metric D between the states of an MDP, stored as a packed lower triangle: the distance
+ * between states i > j is at position i(i-1)/2 + j of a single array, which grows as rows are added.
+ * Row i can be written in any order once the matrix has at least i+1 rows.
+ * The array holds at most MAX_DISTANCES distances, MAX_ROWS rows; larger metrics have to be
+ * kept in a MappedDistanceMatrix
+ */
+public class PackedDistanceMatrix implements DistanceMatrix {
+
+	/**
+	 * Largest number of distances of the array, the largest array length the VMs allow
+	 */
+	static final int MAX_DISTANCES = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Largest number of rows, whose distances fit in MAX_DISTANCES
+	 */
+	static final int MAX_ROWS = 65536;
+
+	/**
+	 * Largest number of distances added by growing the array past the expected rows, so that
+	 * the copy does not hold much more than twice the distances
+	 */
+	private static final int MAX_GROWTH = 1 << 24;
+
+	private double[] d;
+	private int rows;
+	private final int expected_rows;
+
+	/**
+	 * Creates an empty matrix
+	 * @param expected_rows : the number of rows for which memory is reserved when the first rows
+	 * are added
+	 */
+	public PackedDistanceMatrix(int expected_rows) {
+		this.expected_rows = Math.max(expected_rows, 1);
+		d = new double[0];
+		rows = 0;
+	}
+
+	public PackedDistanceMatrix() {
+		this(16);
+	}
+
+	// position of row i in d, for the rows of a matrix (see distances)
+	static int offset(int i) {
+		return (int) ((long) i * (i - 1) / 2);
+	}
+
+	/**
+	 * @param n : a number of rows
+	 * @return the number of distances of n rows
+	 * @throws IllegalArgumentException if they do not fit in an array
+	 */
+	static int distances(int n) {
+		long needed = (long) n * (n - 1) / 2;
+		if(needed > MAX_DISTANCES) {
+			throw new IllegalArgumentException("PackedDistanceMatrix: " + n + " rows have " + needed + 
+					" distances, more than an array can hold; use a MappedDistanceMatrix " +
+					"(AggMDP.Options.setScratchDir) for metrics of more than " + MAX_ROWS + " rows");
+		}
+		return (int) needed;
+	}
+
+	@Override
+	public int size() {
+		return rows;
+	}
+
+	@Override
+	public void ensureRows(int n) {
+		if(n <= rows) return;
+		int needed = distances(n);
+		if(needed > d.length) {
+			// the expected rows at once, then at most MAX_GROWTH distances more than needed
+			long length;
+			if(n <= expected_rows) {
+				length = (long) expected_rows * (expected_rows - 1) / 2;
+			}else {
+				length = Math.max(needed, Math.min(d.length + (long) d.length / 2, (long) needed + MAX_GROWTH));
+			}
+			d = Arrays.copyOf(d, (int) Math.min(length, MAX_DISTANCES));
+		}
+		rows = n;
+	}
+
+	@Override
+	public double get(int i, int j) {
+		if(i == j) return 0;
+		if(i > j) return d[offset(i) + j];
+		else return d[offset(j) + i];
+	}
+
+	@Override
+	public void set(int i, int j, double dist) {
+		if(i > j) d[offset(i) + j] = dist;
+		else d[offset(j) + i] = dist;
+	}
+
+	@Override
+	public void save(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			MappedDistanceMatrix.writeHeader(out, rows);
+			int n = offset(rows);
+			for (int k = 0; k < n; k++) {
+				out.writeDouble(d[k]);
+			}
+		}finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package MDPHierarchy;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import MDPHierarchy.MDP.InvalidMDPException;
+import MDPHierarchy.MDP.State;
+
+/**
+ * The transition model of the ground MDP (the MDP at the bottom of a hierarchy) under one action,
+ * projected on the clusters of an aggregate MDP: for each ground state s, the clusters it transitions
+ * to, colIdx[rowPtr[s]] .. colIdx[rowPtr[s+1]-1] sorted by index, with their masses. It is built
+ * in a single pass over the ground transitions, and gives the histograms of the states of any
+ * level under the aggregate MDP, as these are the histograms of their base states
+ */
+class ProjectionTable {
+
+	final int[] rowPtr;
+	int[] colIdx;
+	double[] mass;
+
+	/**
+	 * @param ground_states : the states of the ground MDP, by index
+	 * @param ground : the ground MDP
+	 * @param a : the action
+	 * @param ground_to_cluster : the index of the cluster of each ground state
+	 * @param num_clusters : the number of clusters
+	 */
+	ProjectionTable(State[] ground_states, MDP ground, int a, int[] ground_to_cluster, int num_clusters)
+			throws InvalidMDPException {
+		rowPtr = new int[ground_states.length + 1];
+		colIdx = new int[ground_states.length];
+		mass = new double[ground_states.length];
+
+		// mass of each cluster in the current row, and the clusters it is not 0 for
+		double[] acc = new double[num_clusters];
+		int[] touched = new int[num_clusters];
+		int nnz = 0;
+		// the next states of the current row and their weights
+		int[] row_idx = new int[0];
+		double[] row_w = new double[0];
+		for (int g = 0; g < ground_states.length; g++) {
+			int n = 0;
+			Map<State,Double> tm_s = ground.getHistogram(ground_states[g], a);
+			if(row_idx.length < tm_s.size()) {
+				row_idx = new int[tm_s.size()];
+				row_w = new double[tm_s.size()];
+			}
+			int row = TransitionView.copyRow(tm_s, row_idx, row_w, 0);
+			for (int k = 0; k < row; k++) {
+				n = accumulate(ground, row_idx[k], row_w[k], ground_to_cluster, acc, touched, n);
+			}
+			Arrays.sort(touched, 0, n);
+			if(nnz + n > colIdx.length) {
+				colIdx = Arrays.copyOf(colIdx, Math.max(2 * colIdx.length, nnz + n));
+				mass = Arrays.copyOf(mass, colIdx.length);
+			}
+			for (int k = 0; k < n; k++) {
+				colIdx[nnz] = touched[k];
+				mass[nnz] = acc[touched[k]];
+				acc[touched[k]] = 0;
+				nnz++;
+			}
+			rowPtr[g + 1] = nnz;
+		}
+	}
+
+	// adds the mass w of the ground state of index sn to its cluster, returns the new number of touched clusters
+	private static int accumulate(MDP ground, int sn, double w, int[] ground_to_cluster, double[] acc, int[] touched,
+			int n) throws InvalidMDPException {
+		int c = ground_to_cluster[sn];
+		if(c < 0) throw ground.new MissingAggParentLinkException();
+		// a cluster is touched when it first gets mass, as in the histograms built from the parent links
+		if(acc[c] == 0 && !contains(touched, n, c)) touched[n++] = c;
+		acc[c] += w;
+		return n;
+	}
+
+	private static boolean contains(int[] touched, int n, int c) {
+		for (int k = 0; k < n; k++) {
+			if(touched[k] == c) return true;
+		}
+		return false;
+	}
+}
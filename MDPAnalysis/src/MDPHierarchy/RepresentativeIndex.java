@@ -0,0 +1,196 @@
+package MDPHierarchy;
+
+import java.util.Arrays;
+import java.util.List;
+
+import MDPHierarchy.AggMDP.PreparedStateComp;
+import MDPHierarchy.MDP.State;
+
+/**
+ * A vantage-point tree over the representatives of the clusters being built by decluster, which finds
+ * the first representative (in cluster order) closer than epsilon to a state without comparing the
+ * state to all of them. Each node holds a representative and a radius mu: the representatives of its
+ * inside subtree are closer than mu to it, the others are in its outside subtree. By the triangle
+ * inequality, a subtree can only hold representatives closer than epsilon to a state at distance d
+ * from the node if d - epsilon < mu (inside) or d + epsilon >= mu (outside).
+ * Representatives are inserted in cluster order, using the distances computed when their cluster was
+ * created, so inserting costs no comparison, and the representative of a node comes before all those
+ * of its subtrees. An inserted representative becomes a leaf, and the radius of a leaf is the distance
+ * to its first child, so that the tree is rebuilt each time the number of representatives doubles: 
+ * the representative of each node is then the first of its subtree, and its radius the median of the 
+ * distances to the others, from the distances between the representatives in D
+ */
+class RepresentativeIndex {
+
+	// the number of representatives from which the tree is rebuilt
+	private static final int FIRST_REBUILD = 8;
+
+	// for each node, the index of its representative, its radius (NaN until it has a child) and its children (-1 for none)
+	private int[] rep = new int[16];
+	private double[] mu = new double[16];
+	private int[] inside = new int[16];
+	private int[] outside = new int[16];
+	private int size = 0;
+	private int next_rebuild = FIRST_REBUILD;
+
+	// allowance for the rounding of the distances, which makes the triangle inequality inexact
+	private final double slack;
+
+	// the distances between the representatives, representative k being the row offset + k
+	private final DistanceMatrix distances;
+	private final int offset;
+
+	/**
+	 * @param slack : the subtrees are only pruned when the triangle inequality excludes them by more than this
+	 * @param distances : the distances between the representatives, written before they get inserted
+	 * @param offset : the row of distances of the first representative
+	 */
+	RepresentativeIndex(double slack, DistanceMatrix distances, int offset) {
+		this.slack = slack;
+		this.distances = distances;
+		this.offset = offset;
+	}
+
+	/**
+	 * Inserts the representative k, k being the number of representatives inserted so far
+	 * @param dists : the distances from representative k to the representatives 0 .. k-1
+	 */
+	void insert(int k, double[] dists) {
+		if(size == rep.length) {
+			rep = Arrays.copyOf(rep, 2 * size);
+			mu = Arrays.copyOf(mu, 2 * size);
+			inside = Arrays.copyOf(inside, 2 * size);
+			outside = Arrays.copyOf(outside, 2 * size);
+		}
+		rep[size] = k;
+		mu[size] = Double.NaN;
+		inside[size] = -1;
+		outside[size] = -1;
+		if(size > 0) {
+			int node = 0;
+			while(true) {
+				double d = dists[rep[node]];
+				if(Double.isNaN(mu[node])) mu[node] = d;
+				if(d < mu[node]) {
+					if(inside[node] < 0) { inside[node] = size; break; }
+					node = inside[node];
+				}else {
+					if(outside[node] < 0) { outside[node] = size; break; }
+					node = outside[node];
+				}
+			}
+		}
+		size++;
+		if(size == next_rebuild) {
+			rebuild();
+			next_rebuild = 2 * size;
+		}
+	}
+
+	/**
+	 * Rebuilds the tree over the representatives inserted so far, each node being the first
+	 * representative of its subtree, with the median distance to the others as radius
+	 */
+	private void rebuild() {
+		int n = size;
+		int[] items = new int[n];
+		for (int k = 0; k < n; k++) items[k] = k;
+		double[] d = new double[n];
+		double[] sorted = new double[n];
+		int[] tmp = new int[n];
+
+		// the ranges of items still to be made subtrees: start, end, parent node (-1 for the root), side
+		int[] work = new int[4 * n];
+		int top = 0;
+		work[top++] = 0;
+		work[top++] = n;
+		work[top++] = -1;
+		work[top++] = 0;
+		size = 0;
+		while(top > 0) {
+			int side = work[--top];
+			int parent = work[--top];
+			int hi = work[--top];
+			int lo = work[--top];
+
+			// the first representative of the range is the node
+			int first = lo;
+			for (int k = lo + 1; k < hi; k++) {
+				if(items[k] < items[first]) first = k;
+			}
+			int node = size++;
+			rep[node] = items[first];
+			mu[node] = Double.NaN;
+			inside[node] = -1;
+			outside[node] = -1;
+			items[first] = items[lo];
+			items[lo] = rep[node];
+			if(parent >= 0) {
+				if(side == 0) inside[parent] = node;
+				else outside[parent] = node;
+			}
+			if(hi - lo == 1) continue;
+
+			// the others, closer than the median inside, then the others
+			int m = hi - lo - 1;
+			for (int k = lo + 1; k < hi; k++) {
+				d[k] = distances.get(offset + rep[node], offset + items[k]);
+				sorted[k - lo - 1] = d[k];
+			}
+			Arrays.sort(sorted, 0, m);
+			mu[node] = sorted[m / 2];
+			int in = lo + 1;
+			int out = 0;
+			for (int k = lo + 1; k < hi; k++) {
+				if(d[k] < mu[node]) items[in++] = items[k];
+				else tmp[out++] = items[k];
+			}
+			System.arraycopy(tmp, 0, items, in, out);
+			if(in > lo + 1) {
+				work[top++] = lo + 1;
+				work[top++] = in;
+				work[top++] = node;
+				work[top++] = 0;
+			}
+			work[top++] = in;
+			work[top++] = hi;
+			work[top++] = node;
+			work[top++] = 1;
+		}
+	}
+
+	/**
+	 * Finds the first representative closer than epsilon to a state
+	 * @param cmp : the distance from the state
+	 * @param reps : the representatives, in cluster order
+	 * @param epsilon : the radius of the search
+	 * @param dists : NaN on input; receives the distances to the representatives the state got compared to
+	 * @return the index of the representative, or -1 if there is none
+	 */
+	int firstWithin(PreparedStateComp cmp, List<State> reps, double epsilon, double[] dists) {
+		int best = -1;
+		if(size == 0) return best;
+		int[] stack = new int[size];
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			// the representatives of the subtree all come after the one of node
+			if(best >= 0 && rep[node] > best) continue;
+			double d = cmp.compareTo(reps.get(rep[node]));
+			dists[rep[node]] = d;
+			if(d < epsilon && (best < 0 || rep[node] < best)) best = rep[node];
+			if(Double.isNaN(mu[node])) continue;
+			if(outside[node] >= 0 && d + epsilon + slack >= mu[node]) stack[top++] = outside[node];
+			if(inside[node] >= 0 && d - epsilon - slack < mu[node]) stack[top++] = inside[node];
+		}
+		return best;
+	}
+
+	/**
+	 * @return the number of representatives in the index
+	 */
+	int size() {
+		return size;
+	}
+}
@@ -0,0 +1,160 @@
+package MDPHierarchy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import MDPHierarchy.MDP.State;
+
+/**
+ * A read-only map view of one row of a transition model stored in compressed sparse row form:
+ * the next states states[colIdx[from]] .. states[colIdx[to-1]], sorted by index, with their
+ * integer weights. Nothing is copied, and the primitive accessors avoid boxing when the
+ * view is read entry by entry
+ */
+public class TransitionView extends AbstractMap<State, Double> {
+
+	private final State[] states;
+	private final int[] colIdx;
+	private final short[] weights;
+	private final int from;
+	private final int to;
+
+	/**
+	 * @param states : the states of the MDP, by index
+	 * @param colIdx : indices of the next states, sorted within the row
+	 * @param weights : integer weights of the next states
+	 * @param from : first position of the row in colIdx and weights
+	 * @param to : position after the last one of the row
+	 */
+	public TransitionView(State[] states, int[] colIdx, short[] weights, int from, int to) {
+		this.states = states;
+		this.colIdx = colIdx;
+		this.weights = weights;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	public int size() {
+		return to - from;
+	}
+
+	/**
+	 * @return the k-th next state of the row, in order of index
+	 */
+	public State state(int k) {
+		return states[colIdx[from + k]];
+	}
+
+	/**
+	 * @return the weight of the k-th next state of the row
+	 */
+	public int weight(int k) {
+		return weights[from + k];
+	}
+
+	/**
+	 * @return the weight of the next state with the given index, 0 if it is not in the row
+	 */
+	public int weightOf(int idx) {
+		int lo = from;
+		int hi = to - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(colIdx[mid] < idx) lo = mid + 1;
+			else if(colIdx[mid] > idx) hi = mid - 1;
+			else return weights[mid];
+		}
+		return 0;
+	}
+
+	/**
+	 * Copies the next states and weights of a row of transitions, by increasing state index.
+	 * The weights of a TransitionView are read without boxing them
+	 * @param tm : the transitions out of a state, as returned by MDP.getHistogram
+	 * @param idx : receives the indices of the next states, from offset on
+	 * @param w : receives their weights, from offset on
+	 * @param offset : first position written in idx and w, which must have room for tm.size() more
+	 * @return the number of next states, tm.size()
+	 */
+	public static int copyRow(Map<State, Double> tm, int[] idx, double[] w, int offset) {
+		int n = tm.size();
+		if(tm instanceof TransitionView) {
+			TransitionView v = (TransitionView) tm;
+			for (int k = 0; k < n; k++) {
+				idx[offset + k] = v.colIdx[v.from + k];
+				w[offset + k] = v.weights[v.from + k];
+			}
+			return n;
+		}
+		int k = offset;
+		for (Map.Entry<State, Double> e : tm.entrySet()) {
+			// insertion sort by index, the rows are short
+			int i = e.getKey().idx();
+			int j = k++;
+			while (j > offset && idx[j - 1] > i) {
+				idx[j] = idx[j - 1];
+				w[j] = w[j - 1];
+				j--;
+			}
+			idx[j] = i;
+			w[j] = e.getValue();
+		}
+		return n;
+	}
+
+	@Override
+	public Double get(Object key) {
+		if(!(key instanceof State)) return null;
+		State s = (State) key;
+		int idx = s.idx();
+		if(idx < 0 || idx >= states.length || states[idx] != s) return null;
+		int w = weightOf(idx);
+		return (w == 0) ? null : Double.valueOf(w);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public Set<Entry<State, Double>> entrySet() {
+		return new AbstractSet<Entry<State, Double>>() {
+			@Override
+			public int size() {
+				return to - from;
+			}
+
+			@Override
+			public Iterator<Entry<State, Double>> iterator() {
+				return new Iterator<Entry<State, Double>>() {
+					private int k = from;
+
+					@Override
+					public boolean hasNext() {
+						return k < to;
+					}
+
+					@Override
+					public Entry<State, Double> next() {
+						if(k >= to) throw new NoSuchElementException();
+						Entry<State, Double> e = new SimpleImmutableEntry<State, Double>(states[colIdx[k]],
+								(double) weights[k]);
+						k++;
+						return e;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,163 @@
+package Runnables;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import MDPHierarchy.AggMDP;
+import MDPHierarchy.BisimulationRefiner;
+import MDPHierarchy.MDP;
+import MDPHierarchy.MDP.InvalidMDPException;
+import SpecificMDPs.PuddleMDP;
+
+/**
+ * Checks that BisimulationRefiner gives the same clusters as refining the reward clusters with 
+ * new AggMDP(magg) until no cluster gets split, and compares their running times: on a PuddleMDP,
+ * whose bisimulation separates all states, and on copies of a chain, whose states at the same 
+ * position are bisimilar.
+ * Usage: BisimulationCheck [size]
+ */
+public class BisimulationCheck {
+
+	/**
+	 * Copies of a chain whose last state is rewarded: moving forward from a state goes to the next 
+	 * position in the next two copies, moving back to the previous position in the previous copy,
+	 * staying with the rest of the mass. The states at the same position are bisimilar, so that the 
+	 * bisimulation has one cluster per position. The fractional weights make the masses sent to a 
+	 * cluster depend on the order they are summed in
+	 */
+	private static class ChainCopiesMDP extends MDP {
+
+		private class ChainState extends State {
+			ChainState(int index) {
+				super(ChainCopiesMDP.this, index);
+			}
+		}
+
+		private final int copies;
+		private final int length;
+		private final List<State> states = new ArrayList<State>();
+		// the transitions of each state, by action then by index of the state
+		private final List<List<Map<State,Double>>> tm = new ArrayList<List<Map<State,Double>>>();
+
+		/**
+		 * @param copies : the number of copies of the chain, at least 2
+		 * @param length : the number of states of the chain
+		 */
+		ChainCopiesMDP(int copies, int length) {
+			this.copies = copies;
+			this.length = length;
+			for (int s = 0; s < copies * length; s++) {
+				states.add(new ChainState(s));
+			}
+			List<Map<State,Double>> forward = new ArrayList<Map<State,Double>>();
+			List<Map<State,Double>> back = new ArrayList<Map<State,Double>>();
+			for (int s = 0; s < copies * length; s++) {
+				int c = s / length;
+				int i = s % length;
+				Map<State,Double> f = new HashMap<State,Double>();
+				add(f, state((c + 1) % copies, (i + 1) % length), 46.7);
+				add(f, state((c + 2) % copies, (i + 1) % length), 33.3);
+				add(f, states.get(s), 20.0);
+				forward.add(f);
+				Map<State,Double> b = new HashMap<State,Double>();
+				add(b, state((c + copies - 1) % copies, Math.max(i - 1, 0)), 90.0);
+				add(b, states.get(s), 10.0);
+				back.add(b);
+			}
+			tm.add(forward);
+			tm.add(back);
+		}
+
+		private State state(int copy, int position) {
+			return states.get(copy * length + position);
+		}
+
+		private static void add(Map<State,Double> m, State s, double w) {
+			Double prev = m.get(s);
+			m.put(s, (prev == null) ? w : prev + w);
+		}
+
+		@Override
+		public double P(State c, int a, State cn) throws InvalidMDPException {
+			Double w = tm.get(a).get(c.idx()).get(cn);
+			return (w == null) ? 0 : w / 100.0;
+		}
+
+		@Override
+		public double R(State c, int a) throws InvalidMDPException {
+			return (c.idx() % length == length - 1) ? 1 : 0;
+		}
+
+		@Override
+		public Map<State,Double> getHistogram(State s, int a) throws InvalidMDPException {
+			return tm.get(a).get(s.idx());
+		}
+
+		@Override
+		public int number_states() {
+			return copies * length;
+		}
+
+		@Override
+		public int number_actions() {
+			return tm.size();
+		}
+
+		@Override
+		public Collection<State> getStates() {
+			return states;
+		}
+	}
+
+	public static void main(String[] args) throws InvalidMDPException {
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+		check("PuddleMDP " + size + "x" + size, new PuddleMDP(size), new PuddleMDP(size));
+		check("4 copies of a chain of " + size, new ChainCopiesMDP(4, size), new ChainCopiesMDP(4, size));
+	}
+
+	/**
+	 * @param m1 : the MDP refined with AggMDP
+	 * @param m2 : the same MDP, refined with BisimulationRefiner
+	 */
+	private static void check(String name, MDP m1, MDP m2) throws InvalidMDPException {
+		// repeated refinements, until a fixed point
+		long t0 = System.nanoTime();
+		AggMDP magg = new AggMDP(m1);
+		int levels = 0;
+		int previous = -1;
+		while(magg.number_states() != previous) {
+			previous = magg.number_states();
+			magg = new AggMDP(magg);
+			levels++;
+		}
+		long t1 = System.nanoTime();
+
+		// partition refinement from the reward clusters
+		long t2 = System.nanoTime();
+		AggMDP bisim = BisimulationRefiner.refine(new AggMDP(m2), new AggMDP.Options());
+		long t3 = System.nanoTime();
+
+		if(bisim.number_states() != magg.number_states()) {
+			throw new IllegalStateException(name + ": " + bisim.number_states() + " clusters instead of " 
+					+ magg.number_states());
+		}
+		// same partitions: the clusters of one determine those of the other
+		int[] to_bisim = new int[magg.number_states()];
+		java.util.Arrays.fill(to_bisim, -1);
+		for (int g = 0; g < m1.number_states(); g++) {
+			int k = magg.clusterOfGroundState(g).idx();
+			int kb = bisim.clusterOfGroundState(g).idx();
+			if(to_bisim[k] < 0) to_bisim[k] = kb;
+			if(to_bisim[k] != kb) {
+				throw new IllegalStateException(name + ": ground state " + g + " is not in the same cluster");
+			}
+		}
+		System.out.println(name + ": " + m1.number_states() + " states, " 
+				+ bisim.number_states() + " clusters, identical");
+		System.out.println(levels + " refinements: " + (t1 - t0) / 1000000 + "ms, partition refinement: " 
+				+ (t3 - t2) / 1000000 + "ms");
+	}
+}
@@ -0,0 +1,58 @@
+package Runnables;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import MDPHierarchy.AggMDP;
+import MDPHierarchy.BisimulationMetric;
+import MDPHierarchy.BisimulationRefiner;
+import MDPHierarchy.DistanceMatrix;
+import MDPHierarchy.MDP;
+import MDPHierarchy.MDP.InvalidMDPException;
+import SpecificMDPs.GridMDP;
+
+/**
+ * Computes the bisimulation metric of a GridMDP to its fixed point, and prints the residual and 
+ * the number of pairs computed by each sweep. The distances between bisimilar states, found by 
+ * BisimulationRefiner, should be 0
+ */
+public class MetricFixedPoint {
+
+	/**
+	 * @param args: size of the GridMDP (default 10), number of threads (default 1), tolerance (default 1e-4)
+	 */
+	public static void main(String[] args) throws InvalidMDPException {
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+		double tolerance = (args.length > 2) ? Double.parseDouble(args[2]) : 1e-4;
+
+		MDP m = new GridMDP(size);
+		ExecutorService executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			long t0 = System.currentTimeMillis();
+			BisimulationMetric solver = new BisimulationMetric(m).setTolerance(tolerance).setExecutor(executor);
+			DistanceMatrix d = solver.solve();
+			long t1 = System.currentTimeMillis();
+
+			List<Double> residuals = solver.getResiduals();
+			List<Long> computed = solver.getComputedPairs();
+			for (int it = 0; it < residuals.size(); it++) {
+				System.out.println("iteration " + it + ": residual " + residuals.get(it) + ", " 
+						+ computed.get(it) + " pairs computed");
+			}
+			System.out.println(size + "x" + size + ", " + threads + " threads: " + (t1 - t0) + "ms");
+
+			AggMDP bisim = BisimulationRefiner.refine(new AggMDP(m), new AggMDP.Options());
+			double max = 0;
+			for (int i = 0; i < m.number_states(); i++) {
+				for (int j = 0; j < i; j++) {
+					if(bisim.clusterOfGroundState(i) == bisim.clusterOfGroundState(j)) max = Math.max(max, d.get(i, j));
+				}
+			}
+			System.out.println(bisim.number_states() + " bisimulation classes, largest distance within a class: " + max);
+		}finally {
+			if(executor != null) executor.shutdown();
+		}
+	}
+}
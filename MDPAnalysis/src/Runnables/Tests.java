@@ -1,6 +1,7 @@
 package Runnables;
 
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 
 import MDPHierarchy.AggMDP;
@@ -11,16 +12,26 @@ import SpecificMDPs.PuddleMDP;
 public class Tests {
 	/**
 	 * Simple main function to test the end product of a simple PuddleMDP
-	 * @param args: ignored
+	 * @param args: size levels path [threshold] [bin]; with bin, the metrics are saved in 
+	 * binary form (see MDPHierarchy.DistanceMatrix.save) instead of csv
 	 */
 	public static void main(String[] args) {
 		int size = Integer.parseInt(args[0]);
 		int levels = Integer.parseInt(args[1]);
 		String path = args[2];
+		boolean binary = false;
+		double threshold = -1;
+		for (int i = 3; i < args.length; i++) {
+			if(args[i].equals("bin")) binary = true;
+			else threshold = Double.parseDouble(args[i]);
+		}
 		PuddleMDP m = new PuddleMDP(size);
 		//String path = "/Users/gcoman/ipython";
 		m.saveMapRepresentation(path);
-		aggSaveData(m, levels, path);
+		aggSaveData(m, levels, path, binary);
+		if(threshold >= 0) {
+			thresholdTest(size, levels, threshold);
+		}
 	}
 	
 	
@@ -42,7 +53,52 @@ public class Tests {
 	}
 	
 	
-	private static void aggSaveData(MDP m, int levels, String path) {
+	/**
+	 * Builds the hierarchy of a PuddleMDP twice, once with the exact EMD and once with 
+	 * a thresholded ground distance, and prints for each level the number of clusters, the 
+	 * time taken and the Rand index between the two partitions of the ground states
+	 */
+	private static void thresholdTest(int size, int levels, double threshold) {
+		MDP m_exact = new PuddleMDP(size);
+		MDP m_thr = new PuddleMDP(size);
+		AggMDP.Options opts = new AggMDP.Options().setEmdThreshold(threshold);
+		AggMDP magg_exact = new AggMDP(m_exact);
+		AggMDP magg_thr = new AggMDP(m_thr);
+		for (int i = 1; i < levels; i++) {
+			long t0 = System.currentTimeMillis();
+			magg_exact = new AggMDP(magg_exact);
+			long t1 = System.currentTimeMillis();
+			magg_thr = new AggMDP(magg_thr, opts);
+			long t2 = System.currentTimeMillis();
+			
+			int n = m_exact.number_states();
+			int[] cl_exact = new int[n];
+			int[] cl_thr = new int[n];
+			int k = 0;
+			for(MDP.State s : m_exact.getStates()) cl_exact[k++] = s.getMemeber(magg_exact).idx();
+			k = 0;
+			for(MDP.State s : m_thr.getStates()) cl_thr[k++] = s.getMemeber(magg_thr).idx();
+			
+			System.out.println("Level " + i + " : exact " + magg_exact.number_states() + " clusters, " 
+					+ (t1 - t0) + "ms; threshold " + threshold + " " + magg_thr.number_states() 
+					+ " clusters, " + (t2 - t1) + "ms; Rand index " + randIndex(cl_exact, cl_thr));
+		}
+	}
+	
+	// fraction of pairs of states on which the two partitions agree (same cluster or not)
+	private static double randIndex(int[] cl1, int[] cl2) {
+		long agree = 0;
+		long total = 0;
+		for (int i = 0; i < cl1.length; i++) {
+			for (int j = 0; j < i; j++) {
+				if((cl1[i] == cl1[j]) == (cl2[i] == cl2[j])) agree++;
+				total++;
+			}
+		}
+		return (total == 0) ? 1 : ((double) agree) / total;
+	}
+	
+	private static void aggSaveData(MDP m, int levels, String path, boolean binary) {
 		PrintWriter out;
 		AggMDP magg = null; //It will get initialized at i=0;
 		for (int i = 0; i < levels; i++) {
@@ -53,14 +109,21 @@ public class Tests {
 				}else {
 					magg = new AggMDP(magg);
 				}				
+				if(i > 0) {
+					System.out.println("EMD computed " + magg.getEmdCalls() + ", avoided " + magg.getEmdCallsAvoided());
+				}
 				String ss = (i == 0) ? "R" : i + "";
 				out = new PrintWriter(path + "/coupling" + ss + ".csv");
 				m.printClMembership(magg, out);
 				out.close();
-				out = new PrintWriter(path + "/dist" + ss + ".csv");
-				magg.printD(out);
-				out.close();
-			}catch(FileNotFoundException e) {
+				if(binary) {
+					magg.getDistances().save(new File(path + "/dist" + ss + ".bin"));
+				}else {
+					out = new PrintWriter(path + "/dist" + ss + ".csv");
+					magg.printD(out);
+					out.close();
+				}
+			}catch(IOException e) {
 				e.printStackTrace(); //TODO: maybe change this		
 			}
 		}
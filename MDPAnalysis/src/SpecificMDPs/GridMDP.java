@@ -2,9 +2,8 @@ package SpecificMDPs;
 
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
@@ -15,6 +14,7 @@ import java.util.Map;
 
 import MDPHierarchy.AggMDP;
 import MDPHierarchy.MDP;
+import MDPHierarchy.TransitionView;
 
 /**
  * Class implementing a Grid World Environment (GWE)
@@ -87,13 +87,82 @@ public class GridMDP extends MDP{
 	final private int GOAL_STATE;
 	
 	
+	/**
+	 * The transition model of one action, as compressed sparse rows: the states to which
+	 * state s transitions with positive probability are colIdx[rowPtr[s]] .. colIdx[rowPtr[s+1]-1], 
+	 * sorted by index, and weights holds their integer weights. Rows are appended in order of state
+	 */
+	protected static class TransitionRows {
+		protected int[] rowPtr;
+		protected int[] colIdx;
+		protected short[] weights;
+		private int rows = 0;
+
+		/**
+		 * @param num_s : number of states (rows)
+		 * @param capacity : expected number of transitions with positive probability
+		 */
+		public TransitionRows(int num_s, int capacity) {
+			rowPtr = new int[num_s + 1];
+			colIdx = new int[capacity];
+			weights = new short[capacity];
+		}
+
+		/**
+		 * Appends the row of the next state: the transitions to idxs[i] with weight vals[i], 
+		 * for the non-zero vals. When an index appears twice, the last weight is kept
+		 * @param idxs : indices of the next states
+		 * @param vals : integer weights
+		 */
+		public void addRow(int[] idxs, int[] vals) {
+			int start = rowPtr[rows];
+			int end = start;
+			for (int i = 0; i < idxs.length; i++) {
+				if(vals[i] == 0) continue;
+				if(end == colIdx.length) {
+					colIdx = Arrays.copyOf(colIdx, 2 * end + 1);
+					weights = Arrays.copyOf(weights, 2 * end + 1);
+				}
+				// insertion in the sorted row
+				int k = end;
+				while (k > start && colIdx[k - 1] > idxs[i]) k--;
+				if(k > start && colIdx[k - 1] == idxs[i]) {
+					weights[k - 1] = (short) vals[i];
+					continue;
+				}
+				System.arraycopy(colIdx, k, colIdx, k + 1, end - k);
+				System.arraycopy(weights, k, weights, k + 1, end - k);
+				colIdx[k] = idxs[i];
+				weights[k] = (short) vals[i];
+				end++;
+			}
+			rows++;
+			rowPtr[rows] = end;
+		}
+
+		/**
+		 * @return the weight of the transition from state s to state sn, 0 if there is none
+		 */
+		public int weight(int s, int sn) {
+			int lo = rowPtr[s];
+			int hi = rowPtr[s + 1] - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if(colIdx[mid] < sn) lo = mid + 1;
+				else if(colIdx[mid] > sn) hi = mid - 1;
+				else return weights[mid];
+			}
+			return 0;
+		}
+	}
+
 	/**
 	 * tm: the transition model. For each action, and each state, we store the states 
 	 * to which we can transition with positive probability, as well as an integer weight
 	 * associated with that state. We assume that all probs. in the model have a total 
 	 * weight of total_sum_pm 
 	 */
-	protected ArrayList< ArrayList <Map<State, Double> > > tm; //probability model
+	protected TransitionRows[] tm; //probability model
 	
 	/**
 	 * As to avoid numerical issues, we store transition probabilities as integers,
@@ -155,17 +224,13 @@ public class GridMDP extends MDP{
 		
 		
 		total_sum_pm = DEFAULT_TOTAL_TRANSITION_WEIGHT;
-		//initialize tm
-		ArrayList<ArrayList<Map<Integer,Double>>> tm_int = new ArrayList<ArrayList<Map<Integer,Double>>>(A);
-		for (int i = 0; i < A; i++) {
-			tm_int.add(new ArrayList<Map<Integer,Double>>(S));
-			for (int j = 0; j < S; j++) {
-				tm_int.get(i).add(new HashMap<Integer,Double>());
-			}
-		}
+		//initialize tm, with at most 4 transitions for each state
+		tm = new TransitionRows[A];
 		
 		//for each action
 		for (int i_a = 0; i_a < A; i_a++) {
+			tm[i_a] = new TransitionRows(S, 4 * S);
+			// rows are added in order of state index
 			for (int y_ax = 0; y_ax < W; y_ax++) { //y-coord
 				for (int x_ax = 0; x_ax < W; x_ax++) { //x-coord
 					//ignore 'inexistent' states
@@ -182,7 +247,6 @@ public class GridMDP extends MDP{
 					int i_ss = idx_all[x_ax][y_ax];
 					/* set up TRANSITION */
 					//.85% desired transition, .05 stay put, .1 left or right
-					Map<Integer, Double> tm_tmp = tm_int.get(i_a).get(i_ss);
 					//indeces of the 4 candidates for transition
 					int[] idxs = new int[4];
 					idxs[0] = i_ss; //curent state
@@ -206,27 +270,12 @@ public class GridMDP extends MDP{
 						}
 					}
 					//only add non-negative transitions
-					for (int i = 0; i < idxs.length; i++) {
-						if(vals[i] != 0) {
-							tm_tmp.put(idxs[i], (double) vals[i]);
-						}
-					}
+					tm[i_a].addRow(idxs, vals);
 					/**TRANSITION DONE*/
 				}//for x_ax
 			}//for y_ax
 		} //for i_a
 		
-		tm = new ArrayList<ArrayList<Map<State,Double>>>(A);
-		for (int i = 0; i < A; i++) {
-			tm.add(new ArrayList<Map<State,Double>>(S));
-			for (int j = 0; j < S; j++) {
-				tm.get(i).add(new HashMap<State,Double>());
-				for(Integer k : tm_int.get(i).get(j).keySet()) {
-					tm.get(i).get(j).put(allStates[k], tm_int.get(i).get(j).get(k));
-				}
-			}
-		}
-		
 	}
 	
 	@Override
@@ -240,12 +289,7 @@ public class GridMDP extends MDP{
 	@Override
 	public double P(State s, int a, State sn /*s_next*/) throws InvalidMDPException{
 		if(!s.sameMdp(this) || !sn.sameMdp(this)) throw new InvalidMDPException();
-		Double d = tm.get(a).get(s.idx()).get(sn.idx());
-		if (d == null) {
-			return 0;
-		}else {
-			return  d / total_sum_pm;
-		}
+		return ((double) tm[a].weight(s.idx(), sn.idx())) / total_sum_pm;
 	}
 	
 	
@@ -274,10 +318,8 @@ public class GridMDP extends MDP{
 		
 		int si = s.idx();
 		
-		// transition map out of input state s to the base Grid MDP
-		//Map<State, Integer> tm_s_this = tm.get(a).get(si);
-		
-		return tm.get(a).get(si);
+		// transition map out of input state s to the base Grid MDP, as a view on tm
+		return new TransitionView(allStates, tm[a].colIdx, tm[a].weights, tm[a].rowPtr[si], tm[a].rowPtr[si + 1]);
 	}
 	
 	
@@ -303,11 +345,11 @@ public class GridMDP extends MDP{
 		toRet += "\n\nTRANSITION\n\n\n";
 		for (int i = 0; i < A; i++) {
 			toRet += "Action " + i + "\n";
-			for (int k = 0; k < tm.get(i).size(); k++) {
+			for (int k = 0; k < S; k++) {
 				toRet += "S " + allStates[k] + " :" + " ---> ";
-				for (State j : tm.get(i).get(k).keySet()) {
-					toRet += j + " :"
-							+ ((double) tm.get(i).get(k).get(j)) / total_sum_pm 
+				for (int j = tm[i].rowPtr[k]; j < tm[i].rowPtr[k + 1]; j++) {
+					toRet += allStates[tm[i].colIdx[j]] + " :"
+							+ ((double) tm[i].weights[j]) / total_sum_pm 
 							+ " ";
 				}
 				toRet += "\n";
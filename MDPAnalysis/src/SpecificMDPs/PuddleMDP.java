@@ -134,7 +134,6 @@ public class PuddleMDP extends GridMDP{
 
 				/* set up TRANSITION */
 				//.85% desired transition, .05 stay put, .1 left or right
-				Map<State, Double> tm_tmp = tm.get(i_a).get(i_s);
 				//indeces of the 4 candidates for transition
 				int[] idxs = new int[4];
 				idxs[0] = i_s; //curent state
@@ -154,12 +153,8 @@ public class PuddleMDP extends GridMDP{
 						vals[i] = 5;
 					}
 				}
-				//only add non-negative transitions
-				for (int i = 0; i < idxs.length; i++) {
-					if(vals[i] != 0) {
-						tm_tmp.put(allStates[idxs[i]], (double) vals[i]);
-					}
-				}
+				//only add non-negative transitions, states come in order of index
+				tm[i_a].addRow(idxs, vals);
 				/**TRANSITION DONE*/
 			}//for s			
 		} //for i_a
@@ -183,12 +178,7 @@ public class PuddleMDP extends GridMDP{
 	public double P(State s, int a, State sn /*s_next*/) throws InvalidMDPException{
 		if(!s.sameMdp(this) || sn.sameMdp(this)) throw new InvalidMDPException();
 		
-		Double d = tm.get(a).get(s.idx()).get(sn.idx());
-		if (d == null) {
-			return 0;
-		}else {
-			return ((double) d) / total_sum_pm;
-		}
+		return ((double) tm[a].weight(s.idx(), sn.idx())) / total_sum_pm;
 	}
 	
 	
@@ -203,13 +193,14 @@ public class PuddleMDP extends GridMDP{
 			toRet += "\n";
 		}
 		toRet += "\n\nTRANSITION\n\n\n";
-		for (int i = 0; i < tm.size(); i++) {
+		for (int i = 0; i < tm.length; i++) {
 			toRet += "Action " + i + "\n";
-			for (int k = 0; k < tm.get(i).size(); k++) {
+			for (int k = 0; k < S; k++) {
 				toRet += "S " + "(" + k%W  + "," + k/W + ") :" + " ---> ";
-				for (State j : tm.get(i).get(k).keySet()) {					
-					toRet += "(" + j.idx()%W  + "," + j.idx()/W + ") :" + ":"
-							+ tm.get(i).get(k).get(j) / total_sum_pm 
+				for (int j = tm[i].rowPtr[k]; j < tm[i].rowPtr[k + 1]; j++) {					
+					int jj = tm[i].colIdx[j];
+					toRet += "(" + jj%W  + "," + jj/W + ") :" + ":"
+							+ ((double) tm[i].weights[j]) / total_sum_pm 
 							+ " ";
 				}
 				toRet += "\n";
@@ -259,12 +250,9 @@ public class PuddleMDP extends GridMDP{
 		for (int i = 0; i < num_a; i++) {
 			rm.add( new HashMap<Integer,Double>());
 		}
-		tm = new ArrayList<ArrayList<Map<State,Double>>>(num_a);
+		tm = new TransitionRows[num_a];
 		for (int i = 0; i < num_a; i++) {
-			tm.add(new ArrayList<Map<State,Double>>(num_s));
-			for (int j = 0; j < num_s; j++) {
-				tm.get(i).add(new HashMap<State,Double>());
-			}
+			tm[i] = new TransitionRows(num_s, 4 * num_s);
 		}
 	}
 
@@ -0,0 +1,16 @@
+package jFastEMD;
+
+
+/**
+ * @author Telmo Menezes (telmo@telmomenezes.com)
+ *
+ */
+class Edge {
+    Edge(int to, long cost) {
+        _to = to;
+        _cost = cost;
+    }
+
+    int _to;
+    long _cost;
+}
@@ -0,0 +1,18 @@
+package jFastEMD;
+
+
+/**
+ * @author Telmo Menezes (telmo@telmomenezes.com)
+ *
+ */
+class Edge0 {
+    Edge0(int to, long cost, long flow) {
+        _to = to;
+        _cost = cost;
+        _flow = flow;
+    }
+
+    int _to;
+    long _cost;
+    long _flow;
+}
@@ -0,0 +1,16 @@
+package jFastEMD;
+
+
+/**
+ * @author Telmo Menezes (telmo@telmomenezes.com)
+ *
+ */
+class Edge1 {
+    Edge1(int to, long reduced_cost) {
+        _to = to;
+        _reduced_cost = reduced_cost;
+    }
+
+    int _to;
+    long _reduced_cost;
+}
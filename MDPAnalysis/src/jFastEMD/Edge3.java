@@ -0,0 +1,21 @@
+package jFastEMD;
+
+
+/**
+ * @author Telmo Menezes (telmo@telmomenezes.com)
+ *
+ */
+class Edge3 {
+    Edge3() {
+        _to = 0;
+        _dist = 0;
+    }
+
+    Edge3(int to, long dist) {
+        _to = to;
+        _dist = dist;
+    }
+
+    int _to;
+    long _dist;
+}
@@ -0,0 +1,38 @@
+package jFastEMD;
+
+
+/**
+ * The algorithms that can solve the transportation problem of emd-hat. All of
+ * them give the same (optimal) integer cost; they only differ in speed.
+ */
+public enum EmdEngine {
+
+    /**
+     * The original successive shortest path solver of JFastEMD (MinCostFlow),
+     * on linked lists of edge objects.
+     */
+    MIN_COST_FLOW,
+
+    /**
+     * Successive shortest paths, with Dijkstra on reduced costs (MinCostFlowCSR).
+     * Fast for the small histograms of transition maps.
+     */
+    SUCCESSIVE_SHORTEST_PATH,
+
+    /**
+     * Primal network simplex (NetworkSimplex). Scales better with the number
+     * of non-empty bins.
+     */
+    NETWORK_SIMPLEX;
+
+    FlowSolver newSolver() {
+        switch (this) {
+        case MIN_COST_FLOW:
+            return new MinCostFlow();
+        case NETWORK_SIMPLEX:
+            return new NetworkSimplex();
+        default:
+            return new MinCostFlowCSR();
+        }
+    }
+}
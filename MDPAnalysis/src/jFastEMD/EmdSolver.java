@@ -0,0 +1,531 @@
+package jFastEMD;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Stateful version of JFastEMD. An EmdSolver owns all the scratch memory needed
+ * by emd-hat (the dense P, Q and C arrays, their integer versions, the flow network
+ * and the min cost flow solver state) and grows it to the largest signature seen so
+ * far, so that once warmed up, computing a distance does not allocate.
+ *
+ * An EmdSolver is not thread safe: use one per thread. The static methods of
+ * JFastEMD use a per-thread instance.
+ */
+public class EmdSolver {
+
+    // This condition should hold:
+    // ( 2^(sizeof(CONVERT_TO_T*8)) >= ( MULT_FACTOR^2 )
+    // Note that it can be problematic to check it because
+    // of overflow problems. I simply checked it with Linux calc
+    // which has arbitrary precision.
+    static private final double MULT_FACTOR = 1000000;
+
+    // dense input of emd-hat, for N = n1 + n2 bins
+    private double[] P = new double[0];
+    private double[] Q = new double[0];
+    private double[] C = new double[0];
+    private long[] iP = new long[0];
+    private long[] iQ = new long[0];
+    private long[] iC = new long[0];
+
+    // scratch of buildNetwork, for 2N + 2 nodes
+    private long[] b = new long[0];
+    private int[] nodesNewNames = new int[0];
+    private boolean[] sourcesThatFlowNotOnlyToThresh = new boolean[0];
+    private boolean[] sinksThatGetFlowNotOnlyFromThresh = new boolean[0];
+
+    private final FlowNetwork net = new FlowNetwork();
+    private EmdEngine engine = EmdEngine.MIN_COST_FLOW;
+    private FlowSolver mcf = engine.newSolver();
+    // the solver of each engine used so far, by ordinal, so that switching engines is cheap
+    private final FlowSolver[] solvers = new FlowSolver[EmdEngine.values().length];
+
+    // histograms with at most this many non-empty bins (together) skip the network
+    private final SmallTransport small = new SmallTransport();
+    private int smallSupportLimit = SmallTransport.MAX_SUPPORT;
+
+    /**
+     * Problems where P and Q have at most limit non-empty bins together are solved
+     * by a dedicated exact solver instead of the emd-hat min cost flow network,
+     * whatever the engine, unless the solve is warm started.
+     * @param limit : at most 8; 0 always uses the network
+     */
+    public void setSmallSupportLimit(int limit) {
+        smallSupportLimit = Math.min(limit, SmallTransport.MAX_SUPPORT);
+    }
+
+    public int getSmallSupportLimit() {
+        return smallSupportLimit;
+    }
+
+    /**
+     * Selects the algorithm solving the transportation problem of emd-hat. The
+     * distances do not depend on it. The solver of each engine is kept, so
+     * callers can set their engine and restore the previous one on each call.
+     */
+    public void setEngine(EmdEngine engine) {
+        if (engine != this.engine) {
+            solvers[this.engine.ordinal()] = mcf;
+            this.engine = engine;
+            mcf = solvers[engine.ordinal()];
+            if (mcf == null)
+                mcf = engine.newSolver();
+        }
+    }
+
+    public EmdEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the number of Dijkstra runs of the SUCCESSIVE_SHORTEST_PATH engine so far
+     */
+    public long getDijkstraCalls() {
+        MinCostFlowCSR ssp = successiveShortestPath();
+        return (ssp != null) ? ssp.dijkstraCalls : 0;
+    }
+
+    /**
+     * @return the number of nodes settled by the Dijkstra runs of the SUCCESSIVE_SHORTEST_PATH
+     * engine so far
+     */
+    public long getDijkstraIterations() {
+        MinCostFlowCSR ssp = successiveShortestPath();
+        return (ssp != null) ? ssp.dijkstraIterations : 0;
+    }
+
+    /**
+     * @return the number of solves of the SUCCESSIVE_SHORTEST_PATH engine that were warm started
+     */
+    public long getWarmSolves() {
+        MinCostFlowCSR ssp = successiveShortestPath();
+        return (ssp != null) ? ssp.warmSolves : 0;
+    }
+
+    // the solver of the SUCCESSIVE_SHORTEST_PATH engine, even when another engine is selected now
+    private MinCostFlowCSR successiveShortestPath() {
+        if (engine == EmdEngine.SUCCESSIVE_SHORTEST_PATH)
+            return (MinCostFlowCSR) mcf;
+        return (MinCostFlowCSR) solvers[EmdEngine.SUCCESSIVE_SHORTEST_PATH.ordinal()];
+    }
+
+    /**
+     * See JFastEMD.distance(Signature, Signature, double)
+     */
+    public double distance(Signature signature1, Signature signature2, double extraMassPenalty) {
+        return distance(signature1, signature2, extraMassPenalty, -1);
+    }
+
+    /**
+     * See JFastEMD.distance(Signature, Signature, double, double)
+     */
+    public double distance(Signature signature1, Signature signature2, double extraMassPenalty,
+            double threshold) {
+        return distance(signature1, null, signature2, extraMassPenalty, threshold, null);
+    }
+
+    /**
+     * A signature that is compared against many others. Its half of the cost matrix,
+     * the ground distances from its features to each feature of the targets, is kept
+     * by target feature, so a feature shared by several targets (e.g. a cluster reached
+     * from many states) costs one row of groundDist calls for all of them. The quantized
+     * weights of the query are kept as well, and only recomputed when the normalization
+     * factor changes (i.e. when a target has more mass than the query).
+     * The ground distances must not change while the query is used. The quantization of
+     * the costs depends on the largest cost of each pair, so it is not kept.
+     */
+    public static class Query {
+        private final Signature signature;
+        private final Feature[] features;
+        private final long[] quantized;
+        private double quantizedFor = Double.NaN;
+        // the ground distances from the features of the query to each target feature seen
+        private final Map<Feature, double[]> groundDists = new IdentityHashMap<Feature, double[]>();
+
+        private Query(Signature signature) {
+            this.signature = signature;
+            this.features = signature.getFeatures();
+            this.quantized = new long[signature.getNumberOfFeatures()];
+        }
+
+        public Signature getSignature() {
+            return signature;
+        }
+
+        // the ground distances from the n features of the query to f
+        private double[] groundDists(Feature f, int n) {
+            double[] d = groundDists.get(f);
+            if (d == null) {
+                d = new double[n];
+                for (int i = 0; i < n; i++) {
+                    d[i] = features[i].groundDist(f);
+                    assert (d[i] >= 0);
+                }
+                groundDists.put(f, d);
+            }
+            return d;
+        }
+    }
+
+    /**
+     * Prepares a signature to be compared against many others, using
+     * distance(Query, Signature, double, double)
+     */
+    public Query prepare(Signature query) {
+        return new Query(query);
+    }
+
+    /**
+     * Same as distance(query.getSignature(), target, extraMassPenalty, threshold)
+     */
+    public double distance(Query query, Signature target, double extraMassPenalty,
+            double threshold) {
+        return distance(query.signature, query, target, extraMassPenalty, threshold, null);
+    }
+
+    /**
+     * Same as distance(query, target, extraMassPenalty, threshold), warm started from
+     * the previous solve saved in warm, which then receives this solve. Warm starts
+     * help when the same pair of supports gets compared again with other masses.
+     * A warm started solve always goes through the network, however small the supports.
+     */
+    public double distance(Query query, Signature target, double extraMassPenalty,
+            double threshold, WarmStart warm) {
+        return distance(query.signature, query, target, extraMassPenalty, threshold, warm);
+    }
+
+    /**
+     * See JFastEMD.distances(Signature, Signature[], double, double, double)
+     */
+    public double[] distances(Signature query, Signature[] targets, double extraMassPenalty,
+            double threshold, double epsilon) {
+        Query q = prepare(query);
+        double[] toRet = new double[targets.length];
+        Arrays.fill(toRet, Double.NaN);
+        for (int k = 0; k < targets.length; k++) {
+            toRet[k] = distance(q, targets[k], extraMassPenalty, threshold);
+            if (epsilon >= 0 && toRet[k] < epsilon)
+                break;
+        }
+        return toRet;
+    }
+
+    // query is either null or the prepared version of signature1, warm may be null
+    private double distance(Signature signature1, Query query, Signature signature2,
+            double extraMassPenalty, double threshold, WarmStart warm) {
+
+        int n1 = signature1.getNumberOfFeatures();
+        int n2 = signature2.getNumberOfFeatures();
+        int N = n1 + n2;
+        ensureCapacity(N);
+
+        Feature[] f1 = signature1.getFeatures();
+        Feature[] f2 = signature2.getFeatures();
+        double[] w1 = signature1.getWeights();
+        double[] w2 = signature2.getWeights();
+        for (int i = 0; i < N; i++) {
+            P[i] = (i < n1) ? w1[i] : 0;
+            Q[i] = (i < n1) ? 0 : w2[i - n1];
+        }
+
+        // flat N x N cost matrix, C[i * N + j] is the cost between node i and node j
+        for (int i = 0; i < N * N; i++) {
+            C[i] = 0;
+        }
+        for (int j = 0; j < n2; j++) {
+            // the distances of the query to f2[j] are computed once for all targets
+            double[] d = (query == null) ? null : query.groundDists(f2[j], n1);
+            for (int i = 0; i < n1; i++) {
+                double dist = (d == null) ? f1[i].groundDist(f2[j]) : d[i];
+                assert (dist >= 0);
+                // edges at the threshold are removed when building the network
+                if (threshold >= 0 && dist > threshold)
+                    dist = threshold;
+                C[i * N + j + n1] = dist;
+                C[(j + n1) * N + i] = dist;
+            }
+        }
+
+        return emdHat(P, Q, C, N, extraMassPenalty, query, warm);
+    }
+
+    /**
+     * See JFastEMD.distance(double[], double[], double[], double)
+     */
+    public double distance(double[] P, double[] Q, double[] C, double extraMassPenalty) {
+        assert (P.length == Q.length);
+        assert (C.length == P.length * Q.length);
+        ensureCapacity(P.length);
+        return emdHat(P, Q, C, P.length, extraMassPenalty, null, null);
+    }
+
+    /**
+     * See JFastEMD.distance(long[], long[], long[], long)
+     */
+    public long distance(long[] P, long[] Q, long[] C, long extraMassPenalty) {
+        assert (P.length == Q.length);
+        assert (C.length == P.length * Q.length);
+        ensureCapacity(P.length);
+        return emdHatImplLongLongInt(P, Q, C, P.length, extraMassPenalty, null);
+    }
+
+    // only the first N entries of P and Q, and the first N * N of C are used.
+    // If query is not null, its weights are the first entries of P
+    private double emdHat(double[] P, double[] Q, double[] C, int N,
+            double extraMassPenalty, Query query, WarmStart warm) {
+
+        // Converting to CONVERT_TO_T
+        double sumP = 0.0;
+        double sumQ = 0.0;
+        double maxC = C[0];
+        for (int i = 0; i < N; i++) {
+            sumP += P[i];
+            sumQ += Q[i];
+        }
+        for (int i = 0; i < N * N; i++) {
+            if (C[i] > maxC)
+                maxC = C[i];
+        }
+        double minSum = Math.min(sumP, sumQ);
+        double maxSum = Math.max(sumP, sumQ);
+        double PQnormFactor = MULT_FACTOR / maxSum;
+        double CnormFactor = MULT_FACTOR / maxC;
+        int start = 0;
+        if (query != null) {
+            // the query bins have no mass in Q
+            start = query.quantized.length;
+            if (query.quantizedFor != PQnormFactor) {
+                for (int i = 0; i < start; i++) {
+                    query.quantized[i] = (long) (Math.floor(P[i] * PQnormFactor + 0.5));
+                }
+                query.quantizedFor = PQnormFactor;
+            }
+            for (int i = 0; i < start; i++) {
+                iP[i] = query.quantized[i];
+                iQ[i] = 0;
+            }
+        }
+        for (int i = start; i < N; i++) {
+            iP[i] = (long) (Math.floor(P[i] * PQnormFactor + 0.5));
+            iQ[i] = (long) (Math.floor(Q[i] * PQnormFactor + 0.5));
+        }
+        for (int i = 0; i < N * N; i++) {
+            iC[i] = (long) (Math.floor(C[i] * CnormFactor + 0.5));
+        }
+
+        // computing distance without extra mass penalty
+        double dist = emdHatImplLongLongInt(iP, iQ, iC, N, 0, warm);
+        // unnormalize
+        dist = dist / PQnormFactor;
+        dist = dist / CnormFactor;
+
+        // adding extra mass penalty
+        if (extraMassPenalty == -1)
+            extraMassPenalty = maxC;
+        dist += (maxSum - minSum) * extraMassPenalty;
+
+        return dist;
+    }
+
+    private long emdHatImplLongLongInt(long[] Pc, long[] Qc, long[] C, int N,
+            long extraMassPenalty, WarmStart warm) {
+
+        if (warm == null && SmallTransport.support(Pc, Qc, N) <= smallSupportLimit) {
+            return small.compute(Pc, Qc, C, N, extraMassPenalty);
+        }
+
+        buildNetwork(Pc, Qc, C, N, net);
+
+        if (extraMassPenalty == -1)
+            extraMassPenalty = net.maxC;
+
+        long mcfDist = (warm != null && mcf instanceof MinCostFlowCSR)
+                ? ((MinCostFlowCSR) mcf).compute(net, warm)
+                : mcf.compute(net);
+
+        long myDist = net.preFlowCost + // pre-flowing on cases where it was possible
+                mcfDist + // solution of the transportation problem
+                (net.absDiffSumPSumQ * extraMassPenalty); // emd-hat extra mass penalty
+
+        return myDist;
+    }
+
+    /**
+     * Builds the transportation network of emd-hat for the integer histograms Pc, Qc
+     * and the flat N x N cost matrix C. Besides the network itself, net receives the
+     * cost of the mass that was pre-flowed through the threshold node, the difference
+     * between the total masses and the maximal cost.
+     */
+    void buildNetwork(long[] Pc, long[] Qc, long[] C, int N, FlowNetwork net) {
+        ensureCapacity(N);
+
+        // Ensuring that the supplier - P, have more mass.
+        // Note that we assume here that C is symmetric
+        long[] P;
+        long[] Q;
+        long absDiffSumPSumQ;
+        long sumP = 0;
+        long sumQ = 0;
+        for (int i = 0; i < N; i++)
+            sumP += Pc[i];
+        for (int i = 0; i < N; i++)
+            sumQ += Qc[i];
+        if (sumQ > sumP) {
+            P = Qc;
+            Q = Pc;
+            absDiffSumPSumQ = sumQ - sumP;
+        } else {
+            P = Pc;
+            Q = Qc;
+            absDiffSumPSumQ = sumP - sumQ;
+        }
+
+        // creating the b vector that contains all vertexes
+        int THRESHOLD_NODE = 2 * N;
+        int ARTIFICIAL_NODE = 2 * N + 1; // need to be last !
+        for (int i = 0; i < N; i++) {
+            b[i] = P[i];
+        }
+        for (int i = N; i < 2 * N; i++) {
+            b[i] = Q[i - N];
+        }
+
+        // remark*) I put here a deficit of the extra mass, as mass that flows
+        // to the threshold node
+        // can be absorbed from all sources with cost zero (this is in reverse
+        // order from the paper,
+        // where incoming edges to the threshold node had the cost of the
+        // threshold and outgoing
+        // edges had the cost of zero)
+        // This also makes sum of b zero.
+        b[THRESHOLD_NODE] = -absDiffSumPSumQ;
+        b[ARTIFICIAL_NODE] = 0;
+
+        long maxC = 0;
+        for (int i = 0; i < N * N; i++) {
+            assert (C[i] >= 0);
+            if (C[i] > maxC)
+                maxC = C[i];
+        }
+
+        // checking which are not isolated, i.e. have a regular edge between
+        // sinks and sources that is not a threshold edge
+        for (int i = 0; i < N; i++) {
+            sourcesThatFlowNotOnlyToThresh[i] = false;
+            sinksThatGetFlowNotOnlyFromThresh[i] = false;
+        }
+        long preFlowCost = 0;
+        int numRegularEdges = 0;
+        for (int i = 0; i < N; i++) {
+            if (b[i] == 0)
+                continue;
+            for (int j = 0; j < N; j++) {
+                if (b[j + N] == 0)
+                    continue;
+                if (C[i * N + j] == maxC)
+                    continue;
+                sourcesThatFlowNotOnlyToThresh[i] = true;
+                sinksThatGetFlowNotOnlyFromThresh[j] = true;
+                numRegularEdges++;
+            }
+        }
+
+        // converting all sinks to negative
+        for (int i = N; i < 2 * N; i++) {
+            b[i] = -b[i];
+        }
+
+        // remove nodes with supply demand of 0
+        // and vertexes that are connected only to the
+        // threshold vertex
+        int currentNodeName = 0;
+        // Note here it should be vector<int> and not vector<int>
+        // as I'm using -1 as a special flag !!!
+        int REMOVE_NODE_FLAG = -1;
+        for (int i = 0; i < 2 * N + 2; i++) {
+            nodesNewNames[i] = REMOVE_NODE_FLAG;
+        }
+        for (int i = 0; i < N * 2; i++) {
+            if (b[i] != 0) {
+                boolean notIsolated = (i < N) ? sourcesThatFlowNotOnlyToThresh[i]
+                        : sinksThatGetFlowNotOnlyFromThresh[i - N];
+                if (notIsolated) {
+                    nodesNewNames[i] = currentNodeName;
+                    currentNodeName++;
+                } else {
+                    if (i >= N) {
+                        preFlowCost -= (b[i] * maxC);
+                    }
+                    b[THRESHOLD_NODE] += b[i]; // add mass(i<N) or deficit (i>=N)
+                }
+            }
+        }
+        nodesNewNames[THRESHOLD_NODE] = currentNodeName;
+        currentNodeName++;
+        nodesNewNames[ARTIFICIAL_NODE] = currentNodeName;
+        currentNodeName++;
+
+        // regular edges, threshold edges, and artificial edges in both directions
+        net.reset(currentNodeName, numRegularEdges + 4 * currentNodeName);
+        net.preFlowCost = preFlowCost;
+        net.absDiffSumPSumQ = absDiffSumPSumQ;
+        net.maxC = maxC;
+
+        // the new names keep the order of the old ones, so the edges can be
+        // added node by node
+        for (int i = 0; i < 2 * N + 2; i++) {
+            if (nodesNewNames[i] == REMOVE_NODE_FLAG)
+                continue;
+            net.addNode(b[i]);
+            if (i < N) {
+                // regular edges between sinks and sources without threshold edges
+                for (int j = 0; j < N; j++) {
+                    if (nodesNewNames[j + N] == REMOVE_NODE_FLAG)
+                        continue;
+                    if (C[i * N + j] == maxC)
+                        continue;
+                    net.addEdge(nodesNewNames[j + N], C[i * N + j]);
+                }
+                // add edges from/to threshold node,
+                // note that costs are reversed to the paper (see also remark* above)
+                // It is important that it will be this way because of remark* above.
+                net.addEdge(nodesNewNames[THRESHOLD_NODE], 0);
+            } else if (i == THRESHOLD_NODE) {
+                for (int j = 0; j < N; ++j) {
+                    if (nodesNewNames[j + N] != REMOVE_NODE_FLAG)
+                        net.addEdge(nodesNewNames[j + N], maxC);
+                }
+            }
+
+            // artificial arcs - Note the restriction that only one edge i,j is
+            // artificial so I ignore it...
+            if (i != ARTIFICIAL_NODE) {
+                net.addEdge(nodesNewNames[ARTIFICIAL_NODE], maxC + 1);
+            } else {
+                for (int j = 0; j < ARTIFICIAL_NODE; j++) {
+                    if (nodesNewNames[j] != REMOVE_NODE_FLAG)
+                        net.addEdge(nodesNewNames[j], maxC + 1);
+                }
+            }
+        }
+    }
+
+    // grows the scratch buffers so that they can hold histograms with N bins
+    private void ensureCapacity(int N) {
+        if (P.length >= N)
+            return;
+        int n = Math.max(N, 2 * P.length);
+        P = new double[n];
+        Q = new double[n];
+        C = new double[n * n];
+        iP = new long[n];
+        iQ = new long[n];
+        iC = new long[n * n];
+        b = new long[2 * n + 2];
+        nodesNewNames = new int[2 * n + 2];
+        sourcesThatFlowNotOnlyToThresh = new boolean[n];
+        sinksThatGetFlowNotOnlyFromThresh = new boolean[n];
+    }
+}
@@ -0,0 +1,60 @@
+package jFastEMD;
+
+
+/**
+ * The transportation network solved by the min cost flow solvers, stored as
+ * compressed sparse rows: the edges leaving node i are the indices
+ * firstEdge[i] .. firstEdge[i+1]-1 of edgeTo / edgeCost.
+ * All edges have infinite capacity and non-negative cost.
+ */
+class FlowNetwork {
+
+    int numNodes;
+    int numEdges;
+
+    // supply(positive) and demand(negative) of each node
+    long[] supply = new long[0];
+    int[] firstEdge = new int[1];
+    int[] edgeTo = new int[0];
+    long[] edgeCost = new long[0];
+
+    // emd-hat terms that are not part of the flow problem
+    long preFlowCost;
+    long absDiffSumPSumQ;
+    long maxC;
+
+    /**
+     * Empties the network and makes room for the given number of nodes and edges
+     */
+    void reset(int nodes, int edges) {
+        if (supply.length < nodes) {
+            supply = new long[nodes];
+            firstEdge = new int[nodes + 1];
+        }
+        if (edgeTo.length < edges) {
+            edgeTo = new int[edges];
+            edgeCost = new long[edges];
+        }
+        numNodes = 0;
+        numEdges = 0;
+        firstEdge[0] = 0;
+    }
+
+    /**
+     * Appends a node; its edges are the ones added until the next call
+     * to addNode (edges have to be added grouped by source node).
+     */
+    void addNode(long s) {
+        supply[numNodes] = s;
+        firstEdge[numNodes] = numEdges;
+        numNodes++;
+        firstEdge[numNodes] = numEdges;
+    }
+
+    void addEdge(int to, long cost) {
+        edgeTo[numEdges] = to;
+        edgeCost[numEdges] = cost;
+        numEdges++;
+        firstEdge[numNodes] = numEdges;
+    }
+}
@@ -0,0 +1,15 @@
+package jFastEMD;
+
+
+/**
+ * A min cost flow solver for the transportation networks built by emd-hat.
+ * Implementations keep their scratch memory between calls, so they are not
+ * thread safe.
+ */
+interface FlowSolver {
+
+    /**
+     * @return the cost of the min cost flow of net, whose supplies sum to zero
+     */
+    long compute(FlowNetwork net);
+}
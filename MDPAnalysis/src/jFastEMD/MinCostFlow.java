@@ -9,70 +9,31 @@ import java.util.Vector;
  * @author Telmo Menezes (telmo@telmomenezes.com)
  *
  */
-class Edge {
-    Edge(int to, long cost) {
-        _to = to;
-        _cost = cost;
-    }
-
-    int _to;
-    long _cost;
-}
-
-class Edge0 {
-    Edge0(int to, long cost, long flow) {
-        _to = to;
-        _cost = cost;
-        _flow = flow;
-    }
-
-    int _to;
-    long _cost;
-    long _flow;
-}
-
-class Edge1 {
-    Edge1(int to, long reduced_cost) {
-        _to = to;
-        _reduced_cost = reduced_cost;
-    }
-
-    int _to;
-    long _reduced_cost;
-}
-
-class Edge2 {
-    Edge2(int to, long reduced_cost, long residual_capacity) {
-        _to = to;
-        _reduced_cost = reduced_cost;
-        _residual_capacity = residual_capacity;
-    }
-
-    int _to;
-    long _reduced_cost;
-    long _residual_capacity;
-}
-
-class Edge3 {
-    Edge3() {
-        _to = 0;
-        _dist = 0;
-    }
-
-    Edge3(int to, long dist) {
-        _to = to;
-        _dist = dist;
-    }
-
-    int _to;
-    long _dist;
-}
-
-class MinCostFlow {
+class MinCostFlow implements FlowSolver {
 
     int numNodes;
     Vector<Integer> nodesToQ;
 
+    /**
+     * Solves net with the list based representation below
+     */
+    @Override
+    public long compute(FlowNetwork net) {
+        Vector<Long> e = new Vector<Long>();
+        Vector<List<Edge>> c = new Vector<List<Edge>>();
+        Vector<List<Edge0>> x = new Vector<List<Edge0>>();
+        for (int i = 0; i < net.numNodes; i++) {
+            e.add(net.supply[i]);
+            List<Edge> edges = new LinkedList<Edge>();
+            for (int k = net.firstEdge[i]; k < net.firstEdge[i + 1]; k++) {
+                edges.add(new Edge(net.edgeTo[k], net.edgeCost[k]));
+            }
+            c.add(edges);
+            x.add(new LinkedList<Edge0>());
+        }
+        return compute(e, c, x);
+    }
+
     // e - supply(positive) and demand(negative).
     // c[i] - edges that goes from node i. first is the second nod
     // x - the flow is returned in it
@@ -383,4 +344,4 @@ class MinCostFlow {
     int PARENT(int i) {
         return (i - 1) / 2;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,292 @@
+package jFastEMD;
+
+
+/**
+ * Successive shortest path min cost flow, same algorithm as MinCostFlow, but
+ * working on a FlowNetwork stored as compressed sparse rows.
+ *
+ * Every network edge k gives two residual arcs: 2k (forward, infinite capacity)
+ * and 2k+1 (backward, capacity equal to the flow on k), so the partner of arc a
+ * is a^1 and updating the residual graph along a path is O(1) per arc.
+ * Instead of updating reduced costs on all edges after each Dijkstra, node
+ * potentials are kept: reduced cost of arc (u,v) is cost + pi[u] - pi[v].
+ *
+ * A solve can start from the flow and potentials of a previous optimal solve of
+ * the same network with other supplies (see WarmStart): they keep all reduced
+ * costs non-negative, so only the excesses left by the old flow get routed.
+ */
+class MinCostFlowCSR implements FlowSolver {
+
+    int numNodes;
+    int numEdges;
+
+    // residual graph: arcs leaving node u are resArc[resFirst[u] .. resFirst[u+1]-1]
+    private int[] resFirst = new int[1];
+    private int[] resArc = new int[0];
+    private int[] arcHead = new int[0];
+    private long[] arcCost = new long[0];
+    private long[] flow = new long[0];
+
+    private long[] e = new long[0];
+    private long[] pi = new long[0];
+    private long[] d = new long[0];
+    private int[] prevArc = new int[0];
+    private boolean[] finalNodesFlg = new boolean[0];
+    private int[] finalNodes = new int[0];
+
+    // indexed binary heap of nodes keyed by d[]; nodesToQ[v] is the position of v
+    // in Q, or -1 when v is not in the heap
+    private int[] Q = new int[0];
+    private int[] nodesToQ = new int[0];
+    private int qSize;
+
+    // statistics: number of Dijkstra runs, of nodes they settled, and of warm solves
+    long dijkstraCalls;
+    long dijkstraIterations;
+    long warmSolves;
+
+    // returns the cost of the min cost flow
+    public long compute(FlowNetwork net) {
+        return compute(net, null);
+    }
+
+    // same as compute(net), starting from the solve saved in warm if it was on the
+    // same network; warm then receives this solve (warm may be null)
+    long compute(FlowNetwork net, WarmStart warm) {
+        numNodes = net.numNodes;
+        numEdges = net.numEdges;
+        ensureCapacity(numNodes, numEdges);
+
+        // build residual graph
+        for (int i = 0; i <= numNodes; i++) {
+            resFirst[i] = 0;
+        }
+        for (int from = 0; from < numNodes; from++) {
+            for (int k = net.firstEdge[from]; k < net.firstEdge[from + 1]; k++) {
+                int to = net.edgeTo[k];
+                arcHead[2 * k] = to;
+                arcCost[2 * k] = net.edgeCost[k];
+                arcHead[2 * k + 1] = from;
+                arcCost[2 * k + 1] = -net.edgeCost[k];
+                flow[k] = 0;
+                resFirst[from + 1]++;
+                resFirst[to + 1]++;
+            }
+        }
+        for (int i = 0; i < numNodes; i++) {
+            resFirst[i + 1] += resFirst[i];
+        }
+        // use prevArc as the insertion cursor
+        for (int i = 0; i < numNodes; i++) {
+            prevArc[i] = resFirst[i];
+        }
+        for (int from = 0; from < numNodes; from++) {
+            for (int k = net.firstEdge[from]; k < net.firstEdge[from + 1]; k++) {
+                resArc[prevArc[from]++] = 2 * k;
+                int to = net.edgeTo[k];
+                resArc[prevArc[to]++] = 2 * k + 1;
+            }
+        }
+
+        for (int i = 0; i < numNodes; i++) {
+            e[i] = net.supply[i];
+            pi[i] = 0;
+            nodesToQ[i] = -1;
+            finalNodesFlg[i] = false;
+        }
+        if (warm != null && warm.matches(net)) {
+            // excesses left by the old flow with the new supplies
+            for (int from = 0; from < numNodes; from++) {
+                pi[from] = warm.pi[from];
+                for (int k = net.firstEdge[from]; k < net.firstEdge[from + 1]; k++) {
+                    flow[k] = warm.flow[k];
+                    e[from] -= flow[k];
+                    e[net.edgeTo[k]] += flow[k];
+                }
+            }
+            warmSolves++;
+        }
+
+        while (true) { // until we break when S or T is empty
+            long maxSupply = 0;
+            int k = 0;
+            for (int i = 0; i < numNodes; i++) {
+                if (e[i] > maxSupply) {
+                    maxSupply = e[i];
+                    k = i;
+                }
+            }
+            if (maxSupply == 0)
+                break;
+
+            int l = computeShortestPath(k);
+
+            // find delta (minimum on the path from k to l)
+            long delta = Math.min(e[k], -e[l]);
+            for (int to = l; to != k; to = arcHead[prevArc[to] ^ 1]) {
+                int a = prevArc[to];
+                if ((a & 1) == 1 && flow[a >> 1] < delta)
+                    delta = flow[a >> 1];
+            }
+
+            // augment delta flow from k to l
+            for (int to = l; to != k; to = arcHead[prevArc[to] ^ 1]) {
+                int a = prevArc[to];
+                if ((a & 1) == 0)
+                    flow[a >> 1] += delta;
+                else
+                    flow[a >> 1] -= delta;
+            }
+            e[k] -= delta;
+            e[l] += delta;
+        }
+
+        // compute distance from the flow
+        long dist = 0;
+        for (int k = 0; k < numEdges; k++) {
+            dist += arcCost[2 * k] * flow[k];
+        }
+        if (warm != null)
+            warm.save(net, pi, flow);
+        return dist;
+    }
+
+    // Dijkstra on reduced costs from node from, stopping at the first node with
+    // a deficit, which is returned. Potentials are updated so that the reduced
+    // costs stay non-negative.
+    private int computeShortestPath(int from) {
+        dijkstraCalls++;
+        int numFinal = 0;
+        qSize = 0;
+        d[from] = 0;
+        heapInsert(from);
+
+        int l = -1;
+        while (qSize > 0) {
+            int u = heapRemoveFirst();
+            dijkstraIterations++;
+            finalNodesFlg[u] = true;
+            finalNodes[numFinal++] = u;
+            if (e[u] < 0) {
+                l = u;
+                break;
+            }
+
+            // neighbors of u
+            for (int i = resFirst[u]; i < resFirst[u + 1]; i++) {
+                int a = resArc[i];
+                if ((a & 1) == 1 && flow[a >> 1] == 0)
+                    continue; // no residual capacity on backward arc
+                int v = arcHead[a];
+                if (finalNodesFlg[v])
+                    continue;
+                long reducedCost = arcCost[a] + pi[u] - pi[v];
+                assert (reducedCost >= 0);
+                long alt = d[u] + reducedCost;
+                if (nodesToQ[v] == -1) {
+                    d[v] = alt;
+                    prevArc[v] = a;
+                    heapInsert(v);
+                } else if (alt < d[v]) {
+                    d[v] = alt;
+                    prevArc[v] = a;
+                    heapDecreaseKey(v);
+                }
+            }
+        }
+        assert (l != -1);
+
+        // update potentials of the nodes with final distance, and reset
+        // the scratch state for the next call
+        for (int i = 0; i < numFinal; i++) {
+            int u = finalNodes[i];
+            pi[u] += d[u] - d[l];
+            finalNodesFlg[u] = false;
+        }
+        for (int i = 0; i < qSize; i++) {
+            nodesToQ[Q[i]] = -1;
+        }
+        qSize = 0;
+        return l;
+    }
+
+    private void ensureCapacity(int nodes, int edges) {
+        if (e.length < nodes) {
+            resFirst = new int[nodes + 1];
+            e = new long[nodes];
+            pi = new long[nodes];
+            d = new long[nodes];
+            prevArc = new int[nodes];
+            finalNodesFlg = new boolean[nodes];
+            finalNodes = new int[nodes];
+            Q = new int[nodes];
+            nodesToQ = new int[nodes];
+        }
+        if (flow.length < edges) {
+            resArc = new int[2 * edges];
+            arcHead = new int[2 * edges];
+            arcCost = new long[2 * edges];
+            flow = new long[edges];
+        }
+    }
+
+    private void heapInsert(int v) {
+        Q[qSize] = v;
+        nodesToQ[v] = qSize;
+        qSize++;
+        heapDecreaseKey(v);
+    }
+
+    private void heapDecreaseKey(int v) {
+        int i = nodesToQ[v];
+        while (i > 0 && d[Q[PARENT(i)]] > d[Q[i]]) {
+            swapHeap(i, PARENT(i));
+            i = PARENT(i);
+        }
+    }
+
+    private int heapRemoveFirst() {
+        int u = Q[0];
+        swapHeap(0, qSize - 1);
+        qSize--;
+        nodesToQ[u] = -1;
+        heapify(0);
+        return u;
+    }
+
+    private void heapify(int i) {
+        while (true) {
+            int l = LEFT(i);
+            int r = RIGHT(i);
+            int smallest = i;
+            if (l < qSize && d[Q[l]] < d[Q[smallest]])
+                smallest = l;
+            if (r < qSize && d[Q[r]] < d[Q[smallest]])
+                smallest = r;
+            if (smallest == i)
+                return;
+            swapHeap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swapHeap(int i, int j) {
+        int tmp = Q[i];
+        Q[i] = Q[j];
+        Q[j] = tmp;
+        nodesToQ[Q[i]] = i;
+        nodesToQ[Q[j]] = j;
+    }
+
+    private static int LEFT(int i) {
+        return 2 * (i + 1) - 1;
+    }
+
+    private static int RIGHT(int i) {
+        return 2 * (i + 1);
+    }
+
+    private static int PARENT(int i) {
+        return (i - 1) / 2;
+    }
+}
@@ -0,0 +1,285 @@
+package jFastEMD;
+
+
+/**
+ * Primal network simplex for the uncapacitated transportation networks of emd-hat.
+ *
+ * The initial basis connects every node to an artificial root through an
+ * artificial arc of very large cost (big-M), carrying the supply of the node to
+ * the root or the demand from it. The spanning tree is kept strongly feasible:
+ * the leaving arc is the last blocking arc met when going around the cycle of
+ * the entering arc starting from the join node, which prevents cycling on
+ * degenerate pivots. Entering arcs are chosen by block search pricing.
+ *
+ * The tree is stored by parent pointers and doubly linked lists of children.
+ * A pivot only moves the subtree cut off by the leaving arc, which gets re-hung
+ * under the entering arc, so only the depths and node potentials of that
+ * subtree are updated, by a traversal of it.
+ */
+class NetworkSimplex implements FlowSolver {
+
+    // real nodes are 0 .. numNodes-1, the root is numNodes
+    private int numNodes;
+    // real arcs are 0 .. numArcs-1, the artificial arc of node u is numArcs + u
+    private int numArcs;
+
+    private int[] source = new int[0];
+    private int[] target = new int[0];
+    private long[] cost = new long[0];
+    private long[] flow = new long[0];
+    private boolean[] inTree = new boolean[0];
+
+    // spanning tree: predArc[u] joins u to parent[u], predUp[u] is true when
+    // that arc goes from u to its parent
+    private int[] parent = new int[0];
+    private int[] predArc = new int[0];
+    private boolean[] predUp = new boolean[0];
+    private int[] depth = new int[0];
+    private long[] pi = new long[0];
+
+    // children of each node: the first one, then the next and previous siblings (-1 for none)
+    private int[] firstChild = new int[0];
+    private int[] nextSibling = new int[0];
+    private int[] prevSibling = new int[0];
+    // scratch of updateSubtree
+    private int[] stack = new int[0];
+
+    // block search pricing
+    private int blockSize;
+    private int nextArc;
+
+    public long compute(FlowNetwork net) {
+        numNodes = net.numNodes;
+        numArcs = net.numEdges;
+        ensureCapacity(numNodes + 1, numArcs + numNodes);
+        int root = numNodes;
+
+        long maxCost = 0;
+        for (int from = 0; from < numNodes; from++) {
+            for (int k = net.firstEdge[from]; k < net.firstEdge[from + 1]; k++) {
+                source[k] = from;
+                target[k] = net.edgeTo[k];
+                cost[k] = net.edgeCost[k];
+                flow[k] = 0;
+                inTree[k] = false;
+                if (cost[k] > maxCost)
+                    maxCost = cost[k];
+            }
+        }
+
+        // longer than any path of real arcs, so artificial arcs end up without flow
+        long artificialCost = (maxCost + 1) * (numNodes + 1);
+        firstChild[root] = -1;
+        for (int u = 0; u < numNodes; u++) {
+            firstChild[u] = -1;
+            link(u, root);
+            int a = numArcs + u;
+            cost[a] = artificialCost;
+            inTree[a] = true;
+            parent[u] = root;
+            predArc[u] = a;
+            if (net.supply[u] >= 0) {
+                source[a] = u;
+                target[a] = root;
+                flow[a] = net.supply[u];
+                predUp[u] = true;
+            } else {
+                source[a] = root;
+                target[a] = u;
+                flow[a] = -net.supply[u];
+                predUp[u] = false;
+            }
+        }
+        parent[root] = -1;
+        depth[root] = 0;
+        pi[root] = 0;
+        updateSubtree(root);
+
+        blockSize = Math.max(10, (int) Math.sqrt(numArcs));
+        nextArc = 0;
+        while (true) {
+            int in = findEnteringArc();
+            if (in == -1)
+                break;
+            pivot(in);
+        }
+
+        long dist = 0;
+        for (int k = 0; k < numArcs; k++) {
+            dist += cost[k] * flow[k];
+        }
+        for (int u = 0; u < numNodes; u++) {
+            assert (flow[numArcs + u] == 0);
+        }
+        return dist;
+    }
+
+    // Arc with the most negative reduced cost in the first block (starting after
+    // the previous entering arc) that has one, or -1 if the flow is optimal.
+    // Artificial arcs are never priced: once they leave the tree they stay out.
+    private int findEnteringArc() {
+        long minReducedCost = 0;
+        int in = -1;
+        int cnt = blockSize;
+        for (int n = 0; n < numArcs; n++) {
+            int a = nextArc;
+            nextArc = (nextArc + 1 == numArcs) ? 0 : nextArc + 1;
+            if (!inTree[a]) {
+                long reducedCost = cost[a] + pi[source[a]] - pi[target[a]];
+                if (reducedCost < minReducedCost) {
+                    minReducedCost = reducedCost;
+                    in = a;
+                }
+            }
+            if (--cnt == 0) {
+                if (in != -1)
+                    return in;
+                cnt = blockSize;
+            }
+        }
+        return in;
+    }
+
+    private void pivot(int in) {
+        int u = source[in];
+        int v = target[in];
+
+        // join node: the common ancestor of u and v
+        int a = u;
+        int b = v;
+        while (a != b) {
+            if (depth[a] >= depth[b])
+                a = parent[a];
+            else
+                b = parent[b];
+        }
+        int join = a;
+
+        // the flow goes around the cycle join -> ... -> u -> v -> ... -> join,
+        // the leaving arc is the last blocking one in that order
+        long delta = Long.MAX_VALUE;
+        int leaveNode = -1;
+        boolean leaveOnUSide = false;
+        for (int w = u; w != join; w = parent[w]) {
+            // flow goes from parent[w] down to w
+            if (predUp[w] && flow[predArc[w]] < delta) {
+                delta = flow[predArc[w]];
+                leaveNode = w;
+                leaveOnUSide = true;
+            }
+        }
+        for (int w = v; w != join; w = parent[w]) {
+            // flow goes from w up to parent[w]
+            if (!predUp[w] && flow[predArc[w]] <= delta) {
+                delta = flow[predArc[w]];
+                leaveNode = w;
+                leaveOnUSide = false;
+            }
+        }
+        assert (leaveNode != -1);
+
+        // augment delta around the cycle
+        if (delta > 0) {
+            flow[in] += delta;
+            for (int w = u; w != join; w = parent[w]) {
+                if (predUp[w])
+                    flow[predArc[w]] -= delta;
+                else
+                    flow[predArc[w]] += delta;
+            }
+            for (int w = v; w != join; w = parent[w]) {
+                if (predUp[w])
+                    flow[predArc[w]] += delta;
+                else
+                    flow[predArc[w]] -= delta;
+            }
+        }
+
+        // the subtree cut off by the leaving arc hangs from the entering arc:
+        // reverse the tree path from the end of the entering arc to leaveNode
+        int out = predArc[leaveNode];
+        int w = leaveOnUSide ? u : v;
+        int newParent = leaveOnUSide ? v : u;
+        int newArc = in;
+        boolean newUp = (source[in] == w);
+        int top = w;
+        while (true) {
+            int oldParent = parent[w];
+            int oldArc = predArc[w];
+            boolean oldUp = predUp[w];
+            unlink(w);
+            link(w, newParent);
+            parent[w] = newParent;
+            predArc[w] = newArc;
+            predUp[w] = newUp;
+            if (w == leaveNode)
+                break;
+            newParent = w;
+            newArc = oldArc;
+            newUp = !oldUp;
+            w = oldParent;
+        }
+        inTree[out] = false;
+        inTree[in] = true;
+
+        updateSubtree(top);
+    }
+
+    // makes c the first child of p
+    private void link(int c, int p) {
+        prevSibling[c] = -1;
+        nextSibling[c] = firstChild[p];
+        if (firstChild[p] != -1)
+            prevSibling[firstChild[p]] = c;
+        firstChild[p] = c;
+    }
+
+    // removes c from the children of its parent
+    private void unlink(int c) {
+        if (prevSibling[c] != -1)
+            nextSibling[prevSibling[c]] = nextSibling[c];
+        else
+            firstChild[parent[c]] = nextSibling[c];
+        if (nextSibling[c] != -1)
+            prevSibling[nextSibling[c]] = prevSibling[c];
+    }
+
+    // depths and potentials of the nodes of the subtree of top, such that tree arcs
+    // have reduced cost 0; those of the other nodes are already set
+    private void updateSubtree(int top) {
+        int size = 0;
+        stack[size++] = top;
+        while (size > 0) {
+            int x = stack[--size];
+            if (x != numNodes) {
+                int p = parent[x];
+                depth[x] = depth[p] + 1;
+                pi[x] = predUp[x] ? pi[p] - cost[predArc[x]] : pi[p] + cost[predArc[x]];
+            }
+            for (int c = firstChild[x]; c != -1; c = nextSibling[c]) {
+                stack[size++] = c;
+            }
+        }
+    }
+
+    private void ensureCapacity(int nodes, int arcs) {
+        if (parent.length < nodes) {
+            parent = new int[nodes];
+            predArc = new int[nodes];
+            predUp = new boolean[nodes];
+            depth = new int[nodes];
+            pi = new long[nodes];
+            firstChild = new int[nodes];
+            nextSibling = new int[nodes];
+            prevSibling = new int[nodes];
+            stack = new int[nodes];
+        }
+        if (source.length < arcs) {
+            source = new int[arcs];
+            target = new int[arcs];
+            cost = new long[arcs];
+            flow = new long[arcs];
+            inTree = new boolean[arcs];
+        }
+    }
+}
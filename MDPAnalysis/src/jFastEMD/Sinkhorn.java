@@ -0,0 +1,348 @@
+package jFastEMD;
+
+
+/**
+ * Approximate EMD between signatures of the same total mass, by entropy
+ * regularized optimal transport (Sinkhorn iterations).
+ *
+ * The plan is P_ij = u_i exp((f_i + g_j - C_ij) / reg) v_j. The iterations
+ * scale u and v to match the marginals r and c, and are stabilized in the log
+ * domain: before u or v overflow, they are absorbed into the dual potentials
+ * f and g, which are then updated once in the log domain:
+ *   g_j = reg log c_j - reg log sum_i exp((f_i - C_ij) / reg)
+ *   f_i = reg log r_i - reg log sum_j exp((g_j - C_ij) / reg)
+ * so that small regularizations do not underflow. The iterations stop when
+ * the marginals of P are within the tolerance of r and c. P is then rounded to a plan with exactly
+ * the marginals r and c (Altschuler, Weed and Rigollet 2017), whose cost is
+ * the returned distance. The distance is therefore never smaller than the EMD,
+ * and it is larger by at most reg log(n m) + 3 err maxC, where err is the L1
+ * error on the marginals before rounding (both in units of normalized mass).
+ *
+ * A Sinkhorn keeps its scratch memory between calls, so it is not thread safe.
+ */
+public class Sinkhorn {
+
+    /**
+     * Result of a distance computation
+     */
+    public static class Result {
+        private final double distance;
+        private final double errorBound;
+        private final int iterations;
+        private final double marginalError;
+
+        public Result(double distance, double errorBound, int iterations, double marginalError) {
+            this.distance = distance;
+            this.errorBound = errorBound;
+            this.iterations = iterations;
+            this.marginalError = marginalError;
+        }
+
+        /**
+         * @return the approximate EMD, in the units of JFastEMD.distance
+         */
+        public double getDistance() {
+            return distance;
+        }
+
+        /**
+         * @return a bound on distance - EMD, which is never negative
+         */
+        public double getErrorBound() {
+            return errorBound;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        /**
+         * @return the L1 error on the marginals (of normalized mass) when the iterations stopped
+         */
+        public double getMarginalError() {
+            return marginalError;
+        }
+    }
+
+    static public final int DEFAULT_MAX_ITERATIONS = 1000;
+
+    // scalings of the kernel are absorbed into the potentials beyond this
+    static private final double MAX_SCALING = 1e100;
+    // iterations between two checks of the marginals
+    static private final int CHECK_INTERVAL = 10;
+
+    private final double regularization;
+    private final double tolerance;
+    private final int maxIterations;
+
+    // supports (non-empty bins) of the two signatures, their normalized masses,
+    // the n x m cost matrix and the transport plan
+    private int[] idx1 = new int[0];
+    private int[] idx2 = new int[0];
+    private double[] r = new double[0];
+    private double[] c = new double[0];
+    private double[] C = new double[0];
+    private double[] plan = new double[0];
+    private double[] f = new double[0];
+    private double[] g = new double[0];
+    private double[] u = new double[0];
+    private double[] v = new double[0];
+    private double[] rowSum = new double[0];
+    private double[] colSum = new double[0];
+
+    /**
+     * @param regularization : the entropic regularization, relative to the largest ground distance
+     * between the two signatures; smaller is more exact but needs more iterations
+     * @param tolerance : the iterations stop when the L1 error on the marginals (of normalized mass)
+     * is below this
+     * @param maxIterations : the iterations stop after this many in any case
+     */
+    public Sinkhorn(double regularization, double tolerance, int maxIterations) {
+        assert (regularization > 0);
+        this.regularization = regularization;
+        this.tolerance = tolerance;
+        this.maxIterations = maxIterations;
+    }
+
+    public Sinkhorn(double regularization, double tolerance) {
+        this(regularization, tolerance, DEFAULT_MAX_ITERATIONS);
+    }
+
+    public double getRegularization() {
+        return regularization;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Approximate EMD between two signatures of the same total mass
+     * @param threshold : the threshold T on the ground distance; a negative value means no threshold
+     */
+    public Result distance(Signature signature1, Signature signature2, double threshold) {
+        Feature[] features1 = signature1.getFeatures();
+        Feature[] features2 = signature2.getFeatures();
+        double[] weights1 = signature1.getWeights();
+        double[] weights2 = signature2.getWeights();
+        ensureCapacity(signature1.getNumberOfFeatures(), signature2.getNumberOfFeatures());
+
+        int n = 0;
+        double sum1 = 0;
+        for (int i = 0; i < signature1.getNumberOfFeatures(); i++) {
+            if (weights1[i] > 0) {
+                idx1[n++] = i;
+                sum1 += weights1[i];
+            }
+        }
+        int m = 0;
+        double sum2 = 0;
+        for (int j = 0; j < signature2.getNumberOfFeatures(); j++) {
+            if (weights2[j] > 0) {
+                idx2[m++] = j;
+                sum2 += weights2[j];
+            }
+        }
+        if (n == 0 || m == 0)
+            return new Result(0, 0, 0, 0);
+
+        double maxC = 0;
+        for (int i = 0; i < n; i++) {
+            r[i] = weights1[idx1[i]] / sum1;
+            for (int j = 0; j < m; j++) {
+                double dist = features1[idx1[i]].groundDist(features2[idx2[j]]);
+                if (threshold >= 0 && dist > threshold)
+                    dist = threshold;
+                C[i * m + j] = dist;
+                if (dist > maxC)
+                    maxC = dist;
+            }
+        }
+        for (int j = 0; j < m; j++) {
+            c[j] = weights2[idx2[j]] / sum2;
+        }
+        if (maxC == 0)
+            return new Result(0, 0, 0, 0);
+
+        double reg = regularization * maxC;
+        for (int i = 0; i < n; i++) {
+            f[i] = 0;
+        }
+        int it = 0;
+        double err = Double.POSITIVE_INFINITY;
+        while (it < maxIterations && err > tolerance) {
+            // an update in the log domain gives each row of the kernel a largest
+            // entry of 1, then the iterations scale the kernel by u and v until
+            // they get too large or too small, and are absorbed into f and g
+            logDomainUpdate(n, m, reg);
+            it++;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < m; j++) {
+                    plan[i * m + j] = Math.exp((f[i] + g[j] - C[i * m + j]) / reg);
+                }
+                u[i] = 1;
+            }
+            for (int j = 0; j < m; j++) {
+                v[j] = 1;
+            }
+            boolean stable = true;
+            while (stable && it < maxIterations && err > tolerance) {
+                for (int j = 0; j < m; j++) {
+                    double sum = 0;
+                    for (int i = 0; i < n; i++) {
+                        sum += plan[i * m + j] * u[i];
+                    }
+                    stable &= scale(v, j, c[j], sum);
+                }
+                for (int i = 0; i < n; i++) {
+                    double sum = 0;
+                    for (int j = 0; j < m; j++) {
+                        sum += plan[i * m + j] * v[j];
+                    }
+                    stable &= scale(u, i, r[i], sum);
+                }
+                it++;
+                if (it % CHECK_INTERVAL == 0) {
+                    // the rows are exact after updating u, only the columns can be off
+                    err = columnError(n, m);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                f[i] += reg * Math.log(u[i]);
+            }
+            for (int j = 0; j < m; j++) {
+                g[j] += reg * Math.log(v[j]);
+            }
+        }
+
+        // plan of the final potentials
+        for (int i = 0; i < n; i++) {
+            u[i] = 1;
+            for (int j = 0; j < m; j++) {
+                plan[i * m + j] = Math.exp((f[i] + g[j] - C[i * m + j]) / reg);
+            }
+        }
+        for (int j = 0; j < m; j++) {
+            v[j] = 1;
+        }
+        err = columnError(n, m);
+
+        round(n, m);
+        double cost = 0;
+        for (int i = 0; i < n * m; i++) {
+            cost += plan[i] * C[i];
+        }
+        double errorBound = reg * Math.log((double) n * m) + 3 * err * maxC;
+        return new Result(cost * sum1, errorBound * sum1, it, err);
+    }
+
+    // scaling[k] = mass / sum, unless that is out of the range where it can stay in
+    // the kernel domain, in which case false is returned
+    private static boolean scale(double[] scaling, int k, double mass, double sum) {
+        if (sum == 0)
+            return false;
+        scaling[k] = mass / sum;
+        return scaling[k] < MAX_SCALING && scaling[k] > 1 / MAX_SCALING;
+    }
+
+    // L1 error on the column marginals of the plan scaled by u and v
+    private double columnError(int n, int m) {
+        double err = 0;
+        for (int j = 0; j < m; j++) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += plan[i * m + j] * u[i];
+            }
+            err += Math.abs(sum * v[j] - c[j]);
+        }
+        return err;
+    }
+
+    private void logDomainUpdate(int n, int m, double reg) {
+        for (int j = 0; j < m; j++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                max = Math.max(max, f[i] - C[i * m + j]);
+            }
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += Math.exp((f[i] - C[i * m + j] - max) / reg);
+            }
+            g[j] = reg * Math.log(c[j]) - max - reg * Math.log(sum);
+        }
+        for (int i = 0; i < n; i++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < m; j++) {
+                max = Math.max(max, g[j] - C[i * m + j]);
+            }
+            double sum = 0;
+            for (int j = 0; j < m; j++) {
+                sum += Math.exp((g[j] - C[i * m + j] - max) / reg);
+            }
+            f[i] = reg * Math.log(r[i]) - max - reg * Math.log(sum);
+        }
+    }
+
+    // makes the marginals of plan exactly r and c, changing it by at most twice
+    // their current L1 error
+    private void round(int n, int m) {
+        for (int i = 0; i < n; i++) {
+            rowSum[i] = 0;
+            for (int j = 0; j < m; j++) {
+                rowSum[i] += plan[i * m + j];
+            }
+            double x = (rowSum[i] > r[i]) ? r[i] / rowSum[i] : 1;
+            for (int j = 0; j < m; j++) {
+                plan[i * m + j] *= x;
+            }
+        }
+        for (int j = 0; j < m; j++) {
+            colSum[j] = 0;
+            for (int i = 0; i < n; i++) {
+                colSum[j] += plan[i * m + j];
+            }
+            double y = (colSum[j] > c[j]) ? c[j] / colSum[j] : 1;
+            for (int i = 0; i < n; i++) {
+                plan[i * m + j] *= y;
+            }
+            colSum[j] *= y;
+        }
+        double errSum = 0;
+        for (int i = 0; i < n; i++) {
+            rowSum[i] = 0;
+            for (int j = 0; j < m; j++) {
+                rowSum[i] += plan[i * m + j];
+            }
+            rowSum[i] = r[i] - rowSum[i];
+            errSum += rowSum[i];
+        }
+        if (errSum <= 0)
+            return;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < m; j++) {
+                plan[i * m + j] += rowSum[i] * (c[j] - colSum[j]) / errSum;
+            }
+        }
+    }
+
+    private void ensureCapacity(int n, int m) {
+        if (r.length < n) {
+            idx1 = new int[n];
+            r = new double[n];
+            f = new double[n];
+            u = new double[n];
+            rowSum = new double[n];
+        }
+        if (c.length < m) {
+            idx2 = new int[m];
+            c = new double[m];
+            g = new double[m];
+            v = new double[m];
+            colSum = new double[m];
+        }
+        if (C.length < n * m) {
+            C = new double[n * m];
+            plan = new double[n * m];
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package jFastEMD;
+
+
+/**
+ * Exact emd-hat for histograms with very few non-empty bins.
+ *
+ * Instead of building the emd-hat network with its threshold and artificial nodes,
+ * the transportation problem is solved directly on the dense bipartite graph between
+ * the bins of P (sources, after making sure P is the heavier histogram) and the bins
+ * of Q (sinks). Mass that goes through the threshold node costs maxC, which is also
+ * the cost of the direct edge that emd-hat removes, and the extra mass of P can stay
+ * where it is for free, so both problems have the same optimal cost.
+ * The flow is found with successive shortest paths, using Bellman-Ford on the
+ * residual graph, which for a handful of bins is cheaper than any heap.
+ */
+class SmallTransport {
+
+    // the largest number of non-empty bins (of P and Q together) handled
+    static final int MAX_SUPPORT = 8;
+
+    private static final long INF = Long.MAX_VALUE / 4;
+
+    private final int[] src = new int[MAX_SUPPORT];
+    private final int[] snk = new int[MAX_SUPPORT];
+    private final long[] supply = new long[MAX_SUPPORT];
+    private final long[] demand = new long[MAX_SUPPORT];
+    private final long[] cost = new long[MAX_SUPPORT * MAX_SUPPORT];
+    private final long[] flow = new long[MAX_SUPPORT * MAX_SUPPORT];
+
+    private final long[] dSrc = new long[MAX_SUPPORT];
+    private final long[] dSnk = new long[MAX_SUPPORT];
+    private final int[] prevSrc = new int[MAX_SUPPORT];
+    private final int[] prevSnk = new int[MAX_SUPPORT];
+
+    /**
+     * Number of non-empty bins of Pc and Qc
+     */
+    static int support(long[] Pc, long[] Qc, int N) {
+        int s = 0;
+        for (int i = 0; i < N; i++) {
+            if (Pc[i] != 0)
+                s++;
+            if (Qc[i] != 0)
+                s++;
+        }
+        return s;
+    }
+
+    /**
+     * Same result as emd-hat on the integer histograms Pc, Qc and the flat N x N cost
+     * matrix C, which must have at most MAX_SUPPORT non-empty bins in total.
+     */
+    long compute(long[] Pc, long[] Qc, long[] C, int N, long extraMassPenalty) {
+        assert (support(Pc, Qc, N) <= MAX_SUPPORT);
+
+        // Ensuring that the supplier - P, have more mass.
+        long sumP = 0;
+        long sumQ = 0;
+        for (int i = 0; i < N; i++) {
+            sumP += Pc[i];
+            sumQ += Qc[i];
+        }
+        long[] P = (sumQ > sumP) ? Qc : Pc;
+        long[] Q = (sumQ > sumP) ? Pc : Qc;
+        long absDiffSumPSumQ = Math.abs(sumP - sumQ);
+
+        long maxC = 0;
+        for (int i = 0; i < N * N; i++) {
+            assert (C[i] >= 0);
+            if (C[i] > maxC)
+                maxC = C[i];
+        }
+        if (extraMassPenalty == -1)
+            extraMassPenalty = maxC;
+
+        int m = 0;
+        int n = 0;
+        long remaining = 0;
+        for (int i = 0; i < N; i++) {
+            if (P[i] != 0) {
+                src[m] = i;
+                supply[m] = P[i];
+                m++;
+            }
+            if (Q[i] != 0) {
+                snk[n] = i;
+                demand[n] = Q[i];
+                remaining += Q[i];
+                n++;
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                cost[i * MAX_SUPPORT + j] = C[src[i] * N + snk[j]];
+                flow[i * MAX_SUPPORT + j] = 0;
+            }
+        }
+
+        while (remaining > 0) {
+            shortestPaths(m, n);
+
+            // closest sink that still has demand
+            int to = -1;
+            for (int j = 0; j < n; j++) {
+                if (demand[j] > 0 && (to == -1 || dSnk[j] < dSnk[to]))
+                    to = j;
+            }
+            assert (to != -1 && dSnk[to] < INF);
+
+            // find delta (minimum on the path)
+            long delta = demand[to];
+            int j = to;
+            int i = prevSnk[j];
+            while (prevSrc[i] != -1) {
+                j = prevSrc[i];
+                if (flow[i * MAX_SUPPORT + j] < delta)
+                    delta = flow[i * MAX_SUPPORT + j];
+                i = prevSnk[j];
+            }
+            if (supply[i] < delta)
+                delta = supply[i];
+
+            // augment
+            j = to;
+            i = prevSnk[j];
+            flow[i * MAX_SUPPORT + j] += delta;
+            while (prevSrc[i] != -1) {
+                j = prevSrc[i];
+                flow[i * MAX_SUPPORT + j] -= delta;
+                i = prevSnk[j];
+                flow[i * MAX_SUPPORT + j] += delta;
+            }
+            supply[i] -= delta;
+            demand[to] -= delta;
+            remaining -= delta;
+        }
+
+        long dist = 0;
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                dist += cost[i * MAX_SUPPORT + j] * flow[i * MAX_SUPPORT + j];
+            }
+        }
+        return dist + absDiffSumPSumQ * extraMassPenalty;
+    }
+
+    // Bellman-Ford from all sources that still have supply. Forward edges go from
+    // sources to sinks, backward edges (with flow) from sinks to sources.
+    private void shortestPaths(int m, int n) {
+        for (int i = 0; i < m; i++) {
+            dSrc[i] = (supply[i] > 0) ? 0 : INF;
+            prevSrc[i] = -1;
+        }
+        for (int j = 0; j < n; j++) {
+            dSnk[j] = INF;
+            prevSnk[j] = -1;
+        }
+        boolean changed = true;
+        for (int it = 0; it < m + n && changed; it++) {
+            changed = false;
+            for (int i = 0; i < m; i++) {
+                if (dSrc[i] == INF)
+                    continue;
+                for (int j = 0; j < n; j++) {
+                    long alt = dSrc[i] + cost[i * MAX_SUPPORT + j];
+                    if (alt < dSnk[j]) {
+                        dSnk[j] = alt;
+                        prevSnk[j] = i;
+                        changed = true;
+                    }
+                }
+            }
+            for (int j = 0; j < n; j++) {
+                if (dSnk[j] == INF)
+                    continue;
+                for (int i = 0; i < m; i++) {
+                    if (flow[i * MAX_SUPPORT + j] == 0)
+                        continue;
+                    long alt = dSnk[j] - cost[i * MAX_SUPPORT + j];
+                    if (alt < dSrc[i]) {
+                        dSrc[i] = alt;
+                        prevSrc[i] = j;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+}
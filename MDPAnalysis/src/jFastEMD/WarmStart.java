@@ -0,0 +1,67 @@
+package jFastEMD;
+
+
+/**
+ * What a min cost flow solve leaves for the next one: the network it solved,
+ * its optimal flow and the node potentials (the dual solution).
+ *
+ * When the next network has the same nodes, edges and costs, and only the
+ * supplies differ (the same two supports compared again with slightly different
+ * masses), the successive shortest path solver starts from that flow and those
+ * potentials, which already satisfy the optimality conditions, and only has to
+ * route the difference in supplies. Otherwise it starts from scratch. Either
+ * way, the state of the new solve replaces the old one.
+ *
+ * Only the SUCCESSIVE_SHORTEST_PATH engine uses warm starts.
+ */
+public class WarmStart {
+
+    int numNodes = -1;
+    int numEdges;
+    int[] firstEdge = new int[1];
+    int[] edgeTo = new int[0];
+    long[] edgeCost = new long[0];
+    long[] pi = new long[0];
+    long[] flow = new long[0];
+
+    /**
+     * Forgets the previous solve
+     */
+    public void clear() {
+        numNodes = -1;
+    }
+
+    // true if net has the nodes, edges and costs of the saved solve
+    boolean matches(FlowNetwork net) {
+        if (numNodes != net.numNodes || numEdges != net.numEdges)
+            return false;
+        for (int i = 0; i <= numNodes; i++) {
+            if (firstEdge[i] != net.firstEdge[i])
+                return false;
+        }
+        for (int k = 0; k < numEdges; k++) {
+            if (edgeTo[k] != net.edgeTo[k] || edgeCost[k] != net.edgeCost[k])
+                return false;
+        }
+        return true;
+    }
+
+    void save(FlowNetwork net, long[] pi, long[] flow) {
+        if (this.pi.length < net.numNodes) {
+            firstEdge = new int[net.numNodes + 1];
+            this.pi = new long[net.numNodes];
+        }
+        if (this.flow.length < net.numEdges) {
+            edgeTo = new int[net.numEdges];
+            edgeCost = new long[net.numEdges];
+            this.flow = new long[net.numEdges];
+        }
+        numNodes = net.numNodes;
+        numEdges = net.numEdges;
+        System.arraycopy(net.firstEdge, 0, firstEdge, 0, numNodes + 1);
+        System.arraycopy(net.edgeTo, 0, edgeTo, 0, numEdges);
+        System.arraycopy(net.edgeCost, 0, edgeCost, 0, numEdges);
+        System.arraycopy(pi, 0, this.pi, 0, numNodes);
+        System.arraycopy(flow, 0, this.flow, 0, numEdges);
+    }
+}